@@ -46,6 +46,9 @@ public class BlackboxHandler implements Runnable {
     private final PositionContainer positionContainer;
     private final PlatformContainer platformContainer;
     private final TelemetryContainer telemetryContainer;
+    private final LatencyMonitor latencyMonitor;
+    private final LinkStatistics droneLinkStatistics, platformLinkStatistics;
+    private final SerialHandler droneSerialHandler, platformSerialHandler;
     private final String blackboxDirectory;
 
     private boolean fileStarted = false;
@@ -63,10 +66,20 @@ public class BlackboxHandler implements Runnable {
     BlackboxHandler(PositionContainer positionContainer,
                     PlatformContainer platformContainer,
                     TelemetryContainer telemetryContainer,
+                    LatencyMonitor latencyMonitor,
+                    LinkStatistics droneLinkStatistics,
+                    LinkStatistics platformLinkStatistics,
+                    SerialHandler droneSerialHandler,
+                    SerialHandler platformSerialHandler,
                     String blackboxDirectory) {
         this.positionContainer = positionContainer;
         this.platformContainer = platformContainer;
         this.telemetryContainer = telemetryContainer;
+        this.latencyMonitor = latencyMonitor;
+        this.droneLinkStatistics = droneLinkStatistics;
+        this.platformLinkStatistics = platformLinkStatistics;
+        this.droneSerialHandler = droneSerialHandler;
+        this.platformSerialHandler = platformSerialHandler;
         this.blackboxDirectory = blackboxDirectory;
     }
 
@@ -180,7 +193,14 @@ public class BlackboxHandler implements Runnable {
                     "platformSpeed,platformHeading,platformIllumination,backlight,alignmentCommand," +
                     "telemetryLost,droneErrorStatus,droneFlightMode,droneBatteryVoltage,droneSatellitesNum," +
                     "droneLat,droneLon,droneAltitude,droneSpeed,droneAngleRoll,droneAnglePitch,droneAngleYaw," +
-                    "droneTemperature,droneIllumination,droneLinkWaypointStep,waypointIndex");
+                    "droneTemperature,droneIllumination,droneLinkWaypointStep,waypointIndex," +
+                    "latencyGrabP99,latencyGrayP99,latencyDetectP99,latencyPoseP99,latencyPositionP99," +
+                    "latencySendP99,latencyTotalP50,latencyTotalP99,latencyTotalMax," +
+                    "droneLinkRate,droneLinkIntervalP99,droneLinkJitter,droneLinkChecksumFailureRate," +
+                    "droneLinkResyncs,platformLinkRate,platformLinkIntervalP99,platformLinkJitter," +
+                    "platformLinkChecksumFailureRate,platformLinkResyncs," +
+                    "droneSerialOverflows,droneSerialDroppedBytes,platformSerialOverflows,platformSerialDroppedBytes," +
+                    "predictionHorizon");
             bufferedWriter.write("\n");
             bufferedWriter.flush();
         } catch (IOException e) {
@@ -188,6 +208,35 @@ public class BlackboxHandler implements Runnable {
         }
     }
 
+    /**
+     * Writes link quality columns (rate, inter-arrival p99, jitter, checksum failure rate, resyncs)
+     * @param linkStatistics LinkStatistics of the drone telemetry or platform
+     */
+    private void pushLinkStatistics(LinkStatistics linkStatistics) throws IOException {
+        LinkStatistics.Report report = linkStatistics.snapshot();
+        bufferedWriter.write(",");
+        bufferedWriter.write(decimalFormat.format(report.packetsRate));
+        bufferedWriter.write(",");
+        bufferedWriter.write(decimalFormat.format(report.intervalP99));
+        bufferedWriter.write(",");
+        bufferedWriter.write(decimalFormat.format(report.jitter));
+        bufferedWriter.write(",");
+        bufferedWriter.write(String.valueOf(report.checksumFailureRate));
+        bufferedWriter.write(",");
+        bufferedWriter.write(String.valueOf(report.resyncs));
+    }
+
+    /**
+     * Writes serial receive overflow columns (driver buffer overflows, bytes dropped by the receive ring)
+     * @param serialHandler SerialHandler of the drone telemetry or platform
+     */
+    private void pushSerialOverflows(SerialHandler serialHandler) throws IOException {
+        bufferedWriter.write(",");
+        bufferedWriter.write(String.valueOf(serialHandler.getOverflows()));
+        bufferedWriter.write(",");
+        bufferedWriter.write(String.valueOf(serialHandler.getDroppedBytes()));
+    }
+
     /**
      * Writes all the data line by line with comma separator
      */
@@ -282,6 +331,22 @@ public class BlackboxHandler implements Runnable {
             bufferedWriter.write(String.valueOf(telemetryContainer.linkWaypointStep));
             bufferedWriter.write(",");
             bufferedWriter.write(String.valueOf(telemetryContainer.waypointIndex));
+            for (int stage = LatencyMonitor.STAGE_GRAB; stage <= LatencyMonitor.STAGE_SEND; stage++) {
+                bufferedWriter.write(",");
+                bufferedWriter.write(decimalFormat.format(latencyMonitor.getP99(stage)));
+            }
+            bufferedWriter.write(",");
+            bufferedWriter.write(decimalFormat.format(latencyMonitor.getP50(LatencyMonitor.STAGE_TOTAL)));
+            bufferedWriter.write(",");
+            bufferedWriter.write(decimalFormat.format(latencyMonitor.getP99(LatencyMonitor.STAGE_TOTAL)));
+            bufferedWriter.write(",");
+            bufferedWriter.write(decimalFormat.format(latencyMonitor.getMax(LatencyMonitor.STAGE_TOTAL)));
+            pushLinkStatistics(droneLinkStatistics);
+            pushLinkStatistics(platformLinkStatistics);
+            pushSerialOverflows(droneSerialHandler);
+            pushSerialOverflows(platformSerialHandler);
+            bufferedWriter.write(",");
+            bufferedWriter.write(decimalFormat.format(positionContainer.predictionHorizon));
             bufferedWriter.write("\n");
             bufferedWriter.flush();
         } catch (Exception e) {
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer single-consumer ring buffer of bytes with bulk write and read.
+ * The consumer is parked while the buffer is empty and woken up by the producer
+ */
+public class ByteRingBuffer {
+    private final byte[] buffer;
+    private final int mask;
+
+    // Positions only grow. Only the producer writes head and only the consumer writes tail
+    private volatile long head = 0, tail = 0;
+    private volatile Thread waiter = null;
+    private volatile long overflowBytes = 0;
+
+    /**
+     * @param capacity size of the buffer in bytes (rounded up to the power of 2)
+     */
+    public ByteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Writes bytes into the buffer (producer side). Bytes that do not fit are dropped and counted
+     * @param source array of bytes
+     * @param offset offset in the source array
+     * @param length number of bytes to write
+     * @return number of written bytes
+     */
+    public int write(byte[] source, int offset, int length) {
+        long currentHead = head;
+        int free = buffer.length - (int) (currentHead - tail);
+        int count = Math.min(free, length);
+        if (count < length)
+            overflowBytes += length - count;
+        if (count <= 0)
+            return 0;
+
+        // Copy in one or two parts (if wrapped)
+        int position = (int) (currentHead & mask);
+        int firstPart = Math.min(count, buffer.length - position);
+        System.arraycopy(source, offset, buffer, position, firstPart);
+        if (count > firstPart)
+            System.arraycopy(source, offset + firstPart, buffer, 0, count - firstPart);
+
+        // Publish new bytes and wake up the consumer
+        head = currentHead + count;
+        Thread parkedThread = waiter;
+        if (parkedThread != null)
+            LockSupport.unpark(parkedThread);
+        return count;
+    }
+
+    /**
+     * Reads available bytes (consumer side). Blocks until at least one byte is available
+     * @param destination array to read bytes into
+     * @param offset offset in the destination array
+     * @param length maximum number of bytes to read
+     * @param timeout maximum waiting time in milliseconds
+     * @return number of read bytes (0 on timeout)
+     */
+    public int read(byte[] destination, int offset, int length, long timeout) {
+        long currentTail = tail;
+        if (head == currentTail) {
+            long waitUntil = System.nanoTime() + timeout * 1000000L;
+            while (head == currentTail) {
+                long timeLeft = waitUntil - System.nanoTime();
+                if (timeLeft <= 0)
+                    return 0;
+
+                // Check again after registering, so the producer can't miss the waiter
+                waiter = Thread.currentThread();
+                if (head == currentTail)
+                    LockSupport.parkNanos(this, timeLeft);
+                waiter = null;
+                if (Thread.interrupted())
+                    return 0;
+            }
+        }
+
+        // Copy in one or two parts (if wrapped)
+        int count = (int) Math.min(head - currentTail, length);
+        int position = (int) (currentTail & mask);
+        int firstPart = Math.min(count, buffer.length - position);
+        System.arraycopy(buffer, position, destination, offset, firstPart);
+        if (count > firstPart)
+            System.arraycopy(buffer, 0, destination, offset + firstPart, count - firstPart);
+
+        // Free space for the producer
+        tail = currentTail + count;
+        return count;
+    }
+
+    /**
+     * @return number of bytes ready to be read
+     */
+    public int available() {
+        return (int) (head - tail);
+    }
+
+    /**
+     * @return number of bytes dropped because the buffer was full
+     */
+    public long getOverflowBytes() {
+        return overflowBytes;
+    }
+}
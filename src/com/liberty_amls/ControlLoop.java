@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the PositionHandler state machine and optical stabilization at the fixed rate (control_rate)
+ * independently of the camera FPS. Cycles that don't finish before the next cycle time are counted as overruns
+ * and the missed cycles are skipped. The time step is the nominal period (multiplied by the number of periods
+ * since the previous cycle if cycles were skipped), so the scheduling jitter doesn't reach the PID controllers
+ */
+public class ControlLoop implements Runnable {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final PositionHandler positionHandler;
+    private final SettingsContainer settingsContainer;
+
+    private volatile boolean loopRunning = true;
+    private volatile long cycles = 0, overruns = 0;
+    private long overrunsLogged = 0, lastLogTime = 0;
+
+    /**
+     * @param positionHandler PositionHandler class object
+     */
+    public ControlLoop(PositionHandler positionHandler, SettingsContainer settingsContainer) {
+        this.positionHandler = positionHandler;
+        this.settingsContainer = settingsContainer;
+    }
+
+    /**
+     * Control loop
+     */
+    @Override
+    public void run() {
+        logger.info("Starting control loop at " + settingsContainer.controlRate + " Hz");
+        long cyclePeriod = (long) (1000000000.0 / settingsContainer.controlRate);
+        long nextCycleTime = System.nanoTime() + cyclePeriod;
+        long cyclePeriods = 1;
+        while (loopRunning) {
+            try {
+                // Wait for the cycle time
+                long timeLeft;
+                while ((timeLeft = nextCycleTime - System.nanoTime()) > 0 && loopRunning)
+                    LockSupport.parkNanos(timeLeft);
+                if (!loopRunning)
+                    break;
+
+                // Time step is the nominal period (times the number of periods covered by this cycle)
+                positionHandler.controlCycle(cyclePeriods * cyclePeriod / 1e9);
+                cycles++;
+
+                // Check overrun (the cycle finished after the next cycle time). Skip the whole missed cycles
+                nextCycleTime += cyclePeriod;
+                long lateness = System.nanoTime() - nextCycleTime;
+                cyclePeriods = 1;
+                if (lateness > 0) {
+                    overruns++;
+                    long skippedCycles = lateness / cyclePeriod + 1;
+                    nextCycleTime += skippedCycles * cyclePeriod;
+                    cyclePeriods += skippedCycles;
+                }
+                logOverruns();
+            } catch (Exception e) {
+                logger.error("Error in control cycle!", e);
+            }
+        }
+    }
+
+    /**
+     * Prints number of overruns (not more often than once per second)
+     */
+    private void logOverruns() {
+        if (overruns != overrunsLogged && System.currentTimeMillis() - lastLogTime >= 1000) {
+            logger.warn((overruns - overrunsLogged) + " control cycle overruns");
+            overrunsLogged = overruns;
+            lastLogTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return number of finished cycles
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return number of cycles that finished after the next cycle time
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Stops the control loop
+     */
+    public void stop() {
+        logger.warn("Stopping control loop");
+        loopRunning = false;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.DetectorParameters;
+
+/**
+ * This class watches the detection time and hit rate and moves the ARUco detector parameters
+ * along the ladder of levels (from the most thorough to the cheapest) to keep the detection time within the budget
+ */
+public class DetectorTuner {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final SettingsContainer settingsContainer;
+
+    // Levels: window size min, window size max, window size step, min perimeter rate,
+    // max perimeter rate, corner refinement method
+    private static final double[][] LEVELS = new double[][] {
+            { 3, 23, 10, 0.03, 4.0, Aruco.CORNER_REFINE_SUBPIX },
+            { 3, 23, 10, 0.03, 4.0, Aruco.CORNER_REFINE_NONE },
+            { 3, 23, 20, 0.03, 4.0, Aruco.CORNER_REFINE_NONE },
+            { 5, 15, 10, 0.04, 4.0, Aruco.CORNER_REFINE_NONE },
+            { 7, 7, 10, 0.05, 4.0, Aruco.CORNER_REFINE_NONE } };
+
+    // OpenCV default parameters
+    private static final int DEFAULT_LEVEL = 1;
+
+    // Decrease level (more thorough) only if it previously took less than this part of the budget
+    private static final double HEADROOM = 0.7;
+
+    // Statistics of the level are smoothed over its visits and forgotten after this number of tuning periods,
+    // so a level that was slow or missed during a transient is tried again
+    private static final double SMOOTHING = 0.5;
+    private static final int SAMPLE_TTL_PERIODS = 20;
+
+    private int level = DEFAULT_LEVEL;
+    private final double[] levelTime = new double[LEVELS.length];
+    private final double[] levelHitRate = new double[LEVELS.length];
+    private final int[] levelAge = new int[LEVELS.length];
+    private long periodTime = 0;
+    private int periodFrames = 0, periodHits = 0;
+
+    /**
+     * @param settingsContainer SettingsContainer class object (detector_target_time and detector_tuning_period)
+     */
+    public DetectorTuner(SettingsContainer settingsContainer) {
+        this.settingsContainer = settingsContainer;
+    }
+
+    /**
+     * Sets parameters of the current level
+     * @param detectorParameters ARUco detector parameters
+     */
+    public void apply(DetectorParameters detectorParameters) {
+        double[] parameters = LEVELS[level];
+        detectorParameters.set_adaptiveThreshWinSizeMin((int) parameters[0]);
+        detectorParameters.set_adaptiveThreshWinSizeMax((int) parameters[1]);
+        detectorParameters.set_adaptiveThreshWinSizeStep((int) parameters[2]);
+        detectorParameters.set_minMarkerPerimeterRate(parameters[3]);
+        detectorParameters.set_maxMarkerPerimeterRate(parameters[4]);
+        detectorParameters.set_cornerRefinementMethod((int) parameters[5]);
+    }
+
+    /**
+     * Adds the result of one detection. At the end of the tuning period, selects the new level
+     * @param detectNanos time of the detection in nanoseconds
+     * @param markerFound true if the marker was found
+     * @return true if the level was changed and the parameters must be applied
+     */
+    public boolean update(long detectNanos, boolean markerFound) {
+        periodTime += detectNanos;
+        periodFrames++;
+        if (markerFound)
+            periodHits++;
+        if (periodFrames < settingsContainer.detectorTuningPeriod)
+            return false;
+
+        // Statistics of the current level
+        double meanTime = periodTime / 1e6 / periodFrames;
+        double hitRate = (double) periodHits / periodFrames;
+        if (levelTime[level] == 0) {
+            levelTime[level] = meanTime;
+            levelHitRate[level] = hitRate;
+        } else {
+            levelTime[level] = levelTime[level] * SMOOTHING + meanTime * (1 - SMOOTHING);
+            levelHitRate[level] = levelHitRate[level] * SMOOTHING + hitRate * (1 - SMOOTHING);
+        }
+        levelAge[level] = 0;
+
+        // Forget outdated statistics of the other levels (unknown level will be probed again)
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (i != level && levelTime[i] > 0 && ++levelAge[i] > SAMPLE_TTL_PERIODS) {
+                levelTime[i] = 0;
+                levelHitRate[i] = 0;
+            }
+        }
+        periodTime = 0;
+        periodFrames = 0;
+        periodHits = 0;
+
+        int newLevel = level;
+        if (meanTime > settingsContainer.detectorTargetTime && level < LEVELS.length - 1) {
+            // Over the budget. Go to the cheaper level
+            newLevel = level + 1;
+        } else if (level > 0 && (levelTime[level - 1] == 0
+                || levelTime[level - 1] < settingsContainer.detectorTargetTime * HEADROOM
+                || (levelTime[level - 1] < settingsContainer.detectorTargetTime
+                && hitRate < levelHitRate[level - 1]))) {
+            // More thorough level fits the budget or the cheaper level loses the marker
+            newLevel = level - 1;
+        }
+
+        if (newLevel == level)
+            return false;
+        logger.info("Detection time: " + String.format("%.2f", meanTime) + " ms, hit rate: "
+                + String.format("%.2f", hitRate) + ". Detector level " + level + " -> " + newLevel);
+        level = newLevel;
+        return true;
+    }
+
+    /**
+     * @return current level (0 - the most thorough)
+     */
+    public int getLevel() {
+        return level;
+    }
+}
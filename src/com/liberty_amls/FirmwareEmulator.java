@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * Loopback stand-in of the Liberty-Link or platform firmware for the link benchmark.
+ * Receives packets from Liberty-Way via UDP, validates them with the PacketDecoder
+ * and answers each one with a packet in the firmware framing (first two bytes of the request are echoed).
+ * Can also send a burst of packets (with some of them corrupted) cut into datagrams of random size
+ */
+public class FirmwareEmulator implements Runnable {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final String name;
+    private final int txPacketLength, echoOffset;
+    private final byte txSuffix1, txSuffix2;
+    private final InetSocketAddress txAddress;
+    private final DatagramChannel datagramChannel;
+    private final PacketDecoder packetDecoder;
+    private final ByteBuffer rxBuffer = ByteBuffer.allocateDirect(2048);
+    private final ByteBuffer txBuffer = ByteBuffer.allocateDirect(2048);
+    private final ByteBuffer answerBuffer = ByteBuffer.allocateDirect(256);
+    private final byte[] txPacket;
+    private volatile boolean emulatorRunning = true;
+
+    /**
+     * @param name name of the emulated firmware (for logs)
+     * @param rxPort port on which Liberty-Way sends packets
+     * @param txPort port on which Liberty-Way receives packets
+     * @param rxPacketLength length of the packets from Liberty-Way
+     * @param rxSuffix1 first suffix byte of the packets from Liberty-Way
+     * @param rxSuffix2 second suffix byte of the packets from Liberty-Way
+     * @param txPacketLength length of the firmware packets
+     * @param txSuffix1 first suffix byte of the firmware packets
+     * @param txSuffix2 second suffix byte of the firmware packets
+     * @param echoOffset index of two bytes of the answer to echo the first two bytes of the request to
+     *                   (-1 to not answer)
+     */
+    public FirmwareEmulator(String name, int rxPort, int txPort,
+                            int rxPacketLength, byte rxSuffix1, byte rxSuffix2,
+                            int txPacketLength, byte txSuffix1, byte txSuffix2, int echoOffset) throws Exception {
+        this.name = name;
+        this.txPacketLength = txPacketLength;
+        this.txSuffix1 = txSuffix1;
+        this.txSuffix2 = txSuffix2;
+        this.echoOffset = echoOffset;
+        this.txPacket = new byte[txPacketLength];
+        this.txAddress = new InetSocketAddress("127.0.0.1", txPort);
+        this.datagramChannel = DatagramChannel.open();
+        this.datagramChannel.bind(new InetSocketAddress("127.0.0.1", rxPort));
+        this.packetDecoder = new PacketDecoder(rxPacketLength, rxSuffix1, rxSuffix2, this::answer);
+    }
+
+    /**
+     * Receiving loop (blocking)
+     */
+    @Override
+    public void run() {
+        while (emulatorRunning) {
+            try {
+                rxBuffer.clear();
+                datagramChannel.receive(rxBuffer);
+                rxBuffer.flip();
+                packetDecoder.decode(rxBuffer);
+            } catch (Exception e) {
+                if (emulatorRunning)
+                    logger.error("Error receiving data in " + name + " emulator!", e);
+            }
+        }
+    }
+
+    /**
+     * Answers the valid request
+     */
+    private void answer(ByteBuffer packet, int offset) {
+        if (echoOffset < 0)
+            return;
+        try {
+            for (int i = 0; i < txPacketLength - 3; i++)
+                txPacket[i] = 0;
+            txPacket[echoOffset] = packet.get(offset);
+            txPacket[echoOffset + 1] = packet.get(offset + 1);
+            fillFraming(txPacket);
+            answerBuffer.clear();
+            answerBuffer.put(txPacket);
+            answerBuffer.flip();
+            datagramChannel.send(answerBuffer, txAddress);
+        } catch (Exception e) {
+            logger.error("Error answering in " + name + " emulator!", e);
+        }
+    }
+
+    /**
+     * Sends a burst of packets with random data bytes. The stream is cut into datagrams of random size,
+     * so some packets are split between two datagrams
+     * @param packetsNum number of packets
+     * @param corruptedRate part of the packets (0 - 1) that are sent with the wrong check byte
+     * @param random seeded Random class object
+     * @return number of corrupted packets
+     */
+    public int sendBurst(int packetsNum, double corruptedRate, Random random) throws Exception {
+        int corruptedNum = 0;
+        int datagramLength = 0, datagramLimit = 1 + random.nextInt(txPacketLength * 3);
+        byte[] packet = new byte[txPacketLength];
+        txBuffer.clear();
+        for (int i = 0; i < packetsNum; i++) {
+            for (int j = 0; j < txPacketLength - 3; j++)
+                packet[j] = (byte) random.nextInt(200);
+            fillFraming(packet);
+            if (random.nextDouble() < corruptedRate) {
+                packet[0] ^= 1;
+                corruptedNum++;
+            }
+
+            // Append the packet to the datagrams
+            for (byte packetByte : packet) {
+                txBuffer.put(packetByte);
+                if (++datagramLength >= datagramLimit) {
+                    txBuffer.flip();
+                    datagramChannel.send(txBuffer, txAddress);
+                    txBuffer.clear();
+                    datagramLength = 0;
+                    datagramLimit = 1 + random.nextInt(txPacketLength * 3);
+                }
+            }
+
+            // Give the receiver some time (loopback socket buffer is limited)
+            if (i % 64 == 63)
+                Thread.sleep(1);
+        }
+        if (datagramLength > 0) {
+            txBuffer.flip();
+            datagramChannel.send(txBuffer, txAddress);
+        }
+        return corruptedNum;
+    }
+
+    /**
+     * Calculates the check byte and adds the suffix
+     */
+    private void fillFraming(byte[] packet) {
+        byte checkByte = 0;
+        for (int i = 0; i < txPacketLength - 3; i++)
+            checkByte ^= packet[i];
+        packet[txPacketLength - 3] = checkByte;
+        packet[txPacketLength - 2] = txSuffix1;
+        packet[txPacketLength - 1] = txSuffix2;
+    }
+
+    /**
+     * @return decoder of the received requests (valid packets and checksum errors)
+     */
+    public PacketDecoder getPacketDecoder() {
+        return packetDecoder;
+    }
+
+    /**
+     * Stops the receiving loop and closes the socket
+     */
+    public void stop() {
+        emulatorRunning = false;
+        try {
+            datagramChannel.close();
+        } catch (Exception ignored) { }
+    }
+}
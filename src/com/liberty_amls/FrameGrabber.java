@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.Mat;
+
+/**
+ * This class continuously grabs frames from the frame source into a small pool of preallocated Mats
+ * and hands the newest one to the detector (triple buffering, the latest frame wins).
+ * Recorded sources are either paced in real time or replayed as fast as the detector takes the frames
+ */
+public class FrameGrabber implements Runnable {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final SettingsContainer settingsContainer;
+    private final FrameSource frameSource;
+
+    // Pool of frames. Slots are only swapped, never reallocated
+    private final Mat[] framesPool = new Mat[] { new Mat(), new Mat(), new Mat() };
+    private final long[] framesTime = new long[3];
+    private int backIndex = 0, readyIndex = 1, frontIndex = 2;
+    private boolean newFrameReady = false;
+
+    private volatile boolean grabberRunning;
+    private volatile double requestedExposure, appliedExposure;
+    private long framesGrabbed = 0, framesDropped = 0;
+
+    // Replay pacing of the recorded sources
+    private boolean waitForConsumer;
+    private long framePeriod, nextFrameTime;
+
+    /**
+     * This class owns the frame source and runs the capture stage in its own thread
+     * @param frameSource FrameSource class object (camera, video file or directory of images)
+     */
+    public FrameGrabber(FrameSource frameSource, SettingsContainer settingsContainer) {
+        this.frameSource = frameSource;
+        this.settingsContainer = settingsContainer;
+    }
+
+    /**
+     * Opens the frame source and captures the first frame
+     * @return true if source opened successfully false if not
+     */
+    public boolean open() {
+        try {
+            requestedExposure = settingsContainer.maxExposure;
+            appliedExposure = settingsContainer.maxExposure;
+
+            // Check if source opened and first frame is not empty
+            if (frameSource.open() && frameSource.read(framesPool[frontIndex])) {
+                // Capture the first frame directly into the front slot
+                framesTime[frontIndex] = System.nanoTime();
+
+                // Recorded sources are paced by their frame rate or by the detector
+                if (!frameSource.isLive()) {
+                    waitForConsumer = !settingsContainer.replayRealtime;
+                    framePeriod = (long) (1000000000.0 / frameSource.getFrameRate());
+                    nextFrameTime = framesTime[frontIndex] + framePeriod;
+                    logger.info("Replaying " + frameSource + (waitForConsumer ? " as fast as possible"
+                            : " in real time at " + frameSource.getFrameRate() + " FPS"));
+                }
+
+                grabberRunning = true;
+                logger.info("Frame source " + frameSource + " opened!");
+                return true;
+            }
+        } catch (Exception e) {
+            logger.error("Error opening " + frameSource + " !", e);
+        }
+        return false;
+    }
+
+    /**
+     * Capture loop. Reads frames as fast as the camera delivers them, so the driver queue never fills up
+     */
+    @Override
+    public void run() {
+        while (grabberRunning && frameSource.isOpened()) {
+            try {
+                // Apply new exposure from this thread (VideoCapture is not thread-safe)
+                if (requestedExposure != appliedExposure) {
+                    appliedExposure = requestedExposure;
+                    frameSource.setExposure(appliedExposure);
+                }
+
+                // Wait for the frame time of the recorded source
+                if (!frameSource.isLive() && !waitForConsumer)
+                    waitFrameTime();
+
+                // Read the frame into the back slot. The back slot is owned by this thread
+                if (frameSource.read(framesPool[backIndex])) {
+                    framesTime[backIndex] = System.nanoTime();
+                    publishBackFrame();
+                } else if (!frameSource.isLive()) {
+                    logger.info("End of " + frameSource);
+                    break;
+                } else
+                    logger.error("Can't read the frame!");
+            } catch (Exception e) {
+                logger.error("Error grabbing the frame!", e);
+            }
+        }
+
+        // Wake up the detector if the loop finished
+        synchronized (this) {
+            grabberRunning = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sleeps until the next frame time of the recorded source (real time replay)
+     */
+    private void waitFrameTime() throws InterruptedException {
+        long timeLeft = nextFrameTime - System.nanoTime();
+        if (timeLeft > 0)
+            Thread.sleep(timeLeft / 1000000, (int) (timeLeft % 1000000));
+        nextFrameTime += framePeriod;
+
+        // Do not try to catch up after a long stall
+        if (System.nanoTime() - nextFrameTime > framePeriod)
+            nextFrameTime = System.nanoTime() + framePeriod;
+    }
+
+    /**
+     * Swaps back and ready slots. If the previous ready frame was not taken, it is dropped.
+     * In as-fast-as-possible replay, waits until the detector takes the previous frame instead
+     */
+    private synchronized void publishBackFrame() throws InterruptedException {
+        while (waitForConsumer && newFrameReady && grabberRunning)
+            wait();
+        int temp = readyIndex;
+        readyIndex = backIndex;
+        backIndex = temp;
+        if (newFrameReady)
+            framesDropped++;
+        newFrameReady = true;
+        framesGrabbed++;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until a frame newer than the previously taken one is available
+     * and swaps it into the front slot. The returned Mat stays valid until the next call
+     * @param timeout maximum waiting time in milliseconds
+     * @return the newest frame or null if no new frame was captured in time or the grabber is stopped
+     */
+    public synchronized Mat takeLatestFrame(long timeout) {
+        long waitUntil = System.currentTimeMillis() + timeout;
+        while (!newFrameReady && grabberRunning) {
+            long timeLeft = waitUntil - System.currentTimeMillis();
+            if (timeLeft <= 0)
+                break;
+            try {
+                wait(timeLeft);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        if (!newFrameReady)
+            return null;
+
+        int temp = frontIndex;
+        frontIndex = readyIndex;
+        readyIndex = temp;
+        newFrameReady = false;
+        notifyAll();
+        return framesPool[frontIndex];
+    }
+
+    /**
+     * @return System.nanoTime() of the moment when the current front frame was captured
+     */
+    public synchronized long getFrontFrameTime() {
+        return framesTime[frontIndex];
+    }
+
+    /**
+     * @return current front frame (the frame that the detector works on)
+     */
+    public synchronized Mat getFrontFrame() {
+        return framesPool[frontIndex];
+    }
+
+    /**
+     * Requests new camera exposure. The value will be applied by the capture thread before the next read
+     * @param exposure new exposure value
+     */
+    public void setExposure(double exposure) {
+        this.requestedExposure = exposure;
+    }
+
+    /**
+     * @return size of the native data of the frames pool in bytes
+     */
+    public synchronized long getNativeBytesHeld() {
+        long bytes = 0;
+        for (Mat frame : framesPool)
+            bytes += OpenCVHandler.matBytes(frame);
+        return bytes;
+    }
+
+    /**
+     * @return number of frames that were overwritten before the detector took them
+     */
+    public synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * @return total number of grabbed frames
+     */
+    public synchronized long getFramesGrabbed() {
+        return framesGrabbed;
+    }
+
+    /**
+     * @return true if the capture loop is running
+     */
+    public boolean isRunning() {
+        return grabberRunning;
+    }
+
+    /**
+     * Stops the capture loop and releases the frame source
+     */
+    public void stop() {
+        logger.warn("Stopping frame grabber");
+        synchronized (this) {
+            grabberRunning = false;
+            notifyAll();
+        }
+        frameSource.release();
+    }
+}
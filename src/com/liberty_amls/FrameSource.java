@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+
+/**
+ * Source of the frames for the FrameGrabber (live camera, video file or directory of images)
+ */
+public interface FrameSource {
+    /**
+     * Opens the source
+     * @return true if the source opened successfully
+     */
+    boolean open();
+
+    /**
+     * Reads the next frame
+     * @param frame Mat object to read frame into
+     * @return false if the frame can't be read or the end of the source is reached
+     */
+    boolean read(Mat frame);
+
+    /**
+     * @return true if the source is opened and frames can be read
+     */
+    boolean isOpened();
+
+    /**
+     * @return true for live cameras (frames are paced by the camera itself)
+     */
+    boolean isLive();
+
+    /**
+     * @return nominal frame rate of the recorded source or 0 if it is unknown
+     */
+    double getFrameRate();
+
+    /**
+     * Sets camera exposure. Ignored by recorded sources
+     * @param exposure new exposure value
+     */
+    void setExposure(double exposure);
+
+    /**
+     * Closes the source
+     */
+    void release();
+
+    /**
+     * Creates frame source from the ID provided by the user
+     * @param sourceID integer camera ID, path to the video file, path to the directory with PNG images
+     *                 or "synthetic" for the generated marker scene
+     * @param settingsContainer SettingsContainer class object
+     * @return FrameSource class object
+     */
+    static FrameSource create(String sourceID, SettingsContainer settingsContainer) {
+        try {
+            return new CameraFrameSource(Integer.parseInt(sourceID.trim()), settingsContainer);
+        } catch (NumberFormatException ignored) { }
+
+        if (sourceID.trim().equals("synthetic"))
+            return new SyntheticFrameSource(FileWorkers.loadCameraMatrix(settingsContainer.cameraMatrixFile),
+                    FileWorkers.loadCameraDistortions(settingsContainer.cameraDistortionsFile), settingsContainer);
+
+        if (new File(sourceID).isDirectory())
+            return new ImageSequenceFrameSource(new File(sourceID), settingsContainer);
+        return new VideoFileFrameSource(sourceID, settingsContainer);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Directory of PNG images as a frame source (images are read in file name order)
+ */
+public class ImageSequenceFrameSource implements FrameSource {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final SettingsContainer settingsContainer;
+    private final File directory;
+    private File[] images;
+    private int imageIndex;
+
+    /**
+     * @param directory directory with PNG images
+     * @param settingsContainer SettingsContainer class object
+     */
+    public ImageSequenceFrameSource(File directory, SettingsContainer settingsContainer) {
+        this.directory = directory;
+        this.settingsContainer = settingsContainer;
+    }
+
+    @Override
+    public boolean open() {
+        logger.info("Opening images from: " + directory.getAbsolutePath());
+        images = directory.listFiles((dir, name) -> name.toLowerCase().endsWith(".png"));
+        if (images == null || images.length == 0) {
+            logger.error("No PNG images in " + directory.getAbsolutePath());
+            images = null;
+            return false;
+        }
+        Arrays.sort(images);
+        imageIndex = 0;
+        logger.info(images.length + " images found");
+        return true;
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        if (images == null || imageIndex >= images.length)
+            return false;
+
+        // Decode the next image and copy it into the provided frame
+        Mat image = Imgcodecs.imread(images[imageIndex].getAbsolutePath(), Imgcodecs.IMREAD_COLOR);
+        imageIndex++;
+        if (image.empty()) {
+            logger.error("Can't read " + images[imageIndex - 1].getName());
+            image.release();
+            return false;
+        }
+        image.copyTo(frame);
+        image.release();
+        return true;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return images != null && imageIndex < images.length;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public double getFrameRate() {
+        return settingsContainer.replayFPS;
+    }
+
+    @Override
+    public void setExposure(double exposure) { }
+
+    @Override
+    public void release() {
+        images = null;
+    }
+
+    @Override
+    public String toString() {
+        return "images from " + directory.getPath();
+    }
+}
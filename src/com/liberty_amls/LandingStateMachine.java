@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Table-driven state machine of the landing sequence (PositionContainer.STATUS_... states).
+ * Each state has an update action that runs every control cycle and an ordered list of transitions.
+ * After the update action the transitions of the current state are checked in the order they were added
+ * and the first one with the passed guard is taken (its action runs before the state is changed).
+ * Time spent in each state and the number of each transition are recorded
+ */
+public class LandingStateMachine {
+    /**
+     * Row of the transition table
+     */
+    private static class Transition {
+        private final int to;
+        private final BooleanSupplier guard;
+        private final Runnable action;
+
+        private Transition(int to, BooleanSupplier guard, Runnable action) {
+            this.to = to;
+            this.guard = guard;
+            this.action = action;
+        }
+    }
+
+    private final int statesNum;
+    private final Runnable[] updateActions;
+    private final ArrayList<ArrayList<Transition>> transitions = new ArrayList<>();
+
+    // Current state and statistics
+    private int state;
+    private long stateEnterTime;
+    private final long[] stateTime;
+    private final long[] stateEntries;
+    private final long[][] transitionsCount;
+
+    /**
+     * @param statesNum number of states (states are indexes from 0 to statesNum - 1)
+     * @param initialState index of the initial state
+     */
+    public LandingStateMachine(int statesNum, int initialState) {
+        this.statesNum = statesNum;
+        this.updateActions = new Runnable[statesNum];
+        this.stateTime = new long[statesNum];
+        this.stateEntries = new long[statesNum];
+        this.transitionsCount = new long[statesNum][statesNum];
+        for (int i = 0; i < statesNum; i++)
+            transitions.add(new ArrayList<>());
+        this.state = initialState;
+        this.stateEnterTime = System.nanoTime();
+        this.stateEntries[initialState]++;
+    }
+
+    /**
+     * Sets the action that runs every cycle while the machine is in the state (before the transitions are checked)
+     * @param state index of the state
+     * @param updateAction action of the state
+     */
+    public void setUpdateAction(int state, Runnable updateAction) {
+        updateActions[state] = updateAction;
+    }
+
+    /**
+     * Adds the transition to the table. Transitions of one state are checked in the order they were added
+     * @param from state of the transition
+     * @param to new state
+     * @param guard condition of the transition
+     * @param action action of the transition (null if no action)
+     */
+    public void addTransition(int from, int to, BooleanSupplier guard, Runnable action) {
+        transitions.get(from).add(new Transition(to, guard, action));
+    }
+
+    /**
+     * Runs the update action of the current state and takes the first transition with the passed guard
+     * @return current state after the cycle
+     */
+    public synchronized int update() {
+        if (updateActions[state] != null)
+            updateActions[state].run();
+        ArrayList<Transition> stateTransitions = transitions.get(state);
+        for (int i = 0; i < stateTransitions.size(); i++) {
+            Transition transition = stateTransitions.get(i);
+            if (transition.guard.getAsBoolean()) {
+                if (transition.action != null)
+                    transition.action.run();
+                changeState(transition.to);
+                break;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Changes the state without checking the table (external commands, e.g. Liberty-Way start or abort).
+     * The transition is recorded as usual
+     * @param newState new state
+     */
+    public synchronized void forceState(int newState) {
+        if (newState != state)
+            changeState(newState);
+    }
+
+    /**
+     * Records statistics of the transition and changes the state
+     * @param newState new state
+     */
+    private void changeState(int newState) {
+        long timeCurrent = System.nanoTime();
+        stateTime[state] += timeCurrent - stateEnterTime;
+        transitionsCount[state][newState]++;
+        stateEntries[newState]++;
+        state = newState;
+        stateEnterTime = timeCurrent;
+    }
+
+    /**
+     * @return current state
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * @return number of states
+     */
+    public int getStatesNum() {
+        return statesNum;
+    }
+
+    /**
+     * @param state index of the state
+     * @return total time spent in the state in seconds (including the current visit)
+     */
+    public synchronized double getStateTime(int state) {
+        long time = stateTime[state];
+        if (state == this.state)
+            time += System.nanoTime() - stateEnterTime;
+        return time / 1e9;
+    }
+
+    /**
+     * @param state index of the state
+     * @return how many times the state was entered
+     */
+    public synchronized long getStateEntries(int state) {
+        return stateEntries[state];
+    }
+
+    /**
+     * @param from state of the transition
+     * @param to new state
+     * @return how many times the transition was taken
+     */
+    public synchronized long getTransitionsCount(int from, int to) {
+        return transitionsCount[from][to];
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import java.util.Arrays;
+
+/**
+ * This class collects per-stage latency of the frames (from the capture to the pose estimator feed)
+ * and of the DDC send (measured on the link scheduler thread, it is not part of the total)
+ * into fixed-bucket histograms and publishes p50 / p99 / max of the last measure period
+ */
+public class LatencyMonitor {
+    public static final int STAGE_GRAB = 0;
+    public static final int STAGE_GRAY = 1;
+    public static final int STAGE_DETECT = 2;
+    public static final int STAGE_POSE = 3;
+    public static final int STAGE_POSITION = 4;
+    public static final int STAGE_SEND = 5;
+    public static final int STAGE_TOTAL = 6;
+    public static final String[] STAGE_NAMES = new String[] {
+            "grab", "gray", "detect", "pose", "position", "send", "total" };
+
+    // Histogram resolution is 0.1 ms up to 200 ms. Slower values are counted in the last bucket
+    private static final long BUCKET_NANOS = 100000;
+    private static final int BUCKETS_NUM = 2001;
+
+    private final long[][] histograms = new long[STAGE_NAMES.length][BUCKETS_NUM];
+    private final long[] counts = new long[STAGE_NAMES.length];
+    private final long[] maxNanos = new long[STAGE_NAMES.length];
+
+    // Last published report (in milliseconds)
+    private final double[] p50 = new double[STAGE_NAMES.length];
+    private final double[] p99 = new double[STAGE_NAMES.length];
+    private final double[] max = new double[STAGE_NAMES.length];
+    private final long[] reportCounts = new long[STAGE_NAMES.length];
+
+    /**
+     * Adds the measured duration of the stage to its histogram
+     * @param stage one of STAGE_... constants
+     * @param nanos duration of the stage in nanoseconds
+     */
+    public synchronized void record(int stage, long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        histograms[stage][(int) Math.min(nanos / BUCKET_NANOS, BUCKETS_NUM - 1)]++;
+        counts[stage]++;
+        if (nanos > maxNanos[stage])
+            maxNanos[stage] = nanos;
+    }
+
+    /**
+     * Calculates percentiles of the current period, stores them as the last report and resets the histograms
+     */
+    public synchronized void publish() {
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            p50[stage] = percentile(stage, 0.50);
+            p99[stage] = percentile(stage, 0.99);
+            max[stage] = maxNanos[stage] / 1e6;
+            reportCounts[stage] = counts[stage];
+
+            // Reset histogram
+            Arrays.fill(histograms[stage], 0);
+            counts[stage] = 0;
+            maxNanos[stage] = 0;
+        }
+    }
+
+    /**
+     * @param stage one of STAGE_... constants
+     * @param fraction percentile (0 - 1)
+     * @return upper bound of the percentile bucket in milliseconds (0 if no values)
+     */
+    private double percentile(int stage, double fraction) {
+        if (counts[stage] == 0)
+            return 0;
+        long rank = (long) Math.ceil(counts[stage] * fraction);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKETS_NUM; i++) {
+            accumulated += histograms[stage][i];
+            if (accumulated >= rank)
+                return Math.min((i + 1) * BUCKET_NANOS, maxNanos[stage]) / 1e6;
+        }
+        return maxNanos[stage] / 1e6;
+    }
+
+    /**
+     * @return median latency of the stage from the last report (in milliseconds)
+     */
+    public synchronized double getP50(int stage) {
+        return p50[stage];
+    }
+
+    /**
+     * @return 99th percentile latency of the stage from the last report (in milliseconds)
+     */
+    public synchronized double getP99(int stage) {
+        return p99[stage];
+    }
+
+    /**
+     * @return maximum latency of the stage from the last report (in milliseconds)
+     */
+    public synchronized double getMax(int stage) {
+        return max[stage];
+    }
+
+    /**
+     * @return number of measurements of the stage in the last report
+     */
+    public synchronized long getCount(int stage) {
+        return reportCounts[stage];
+    }
+}
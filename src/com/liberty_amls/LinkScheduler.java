@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends Liberty-Link packets to the drone at the fixed rate (link_rate) independently of the camera FPS.
+ * Each slot carries the latest DDC command computed by the PositionHandler, or the next waypoint
+ * of the broadcast (IDLE and WAYP modes). Late slots are counted as missed deadlines
+ */
+public class LinkScheduler implements Runnable {
+    public static final int MODE_WAYPOINTS = 0;
+    public static final int MODE_DDC = 1;
+    public static final int MODE_NONE = 2;
+
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final LinkSender linkSender;
+    private final SettingsContainer settingsContainer;
+    private PositionHandler positionHandler;
+
+    // Latest command
+    private int mode = MODE_WAYPOINTS;
+    private int ddcRoll, ddcPitch, ddcZ, ddcYaw, ddcCommand;
+    private long ddcTime;
+
+    private volatile boolean schedulerRunning = true;
+    private volatile long nextSlotTime;
+    private volatile long slotsSent = 0, missedDeadlines = 0;
+    private long missedDeadlinesLogged = 0, lastLogTime = 0;
+
+    /**
+     * @param linkSender LinkSender class object to send packets
+     */
+    public LinkScheduler(LinkSender linkSender, SettingsContainer settingsContainer) {
+        this.linkSender = linkSender;
+        this.settingsContainer = settingsContainer;
+    }
+
+    /**
+     * @param positionHandler PositionHandler class object that fills waypoint slots
+     */
+    public void setPositionHandler(PositionHandler positionHandler) {
+        this.positionHandler = positionHandler;
+    }
+
+    /**
+     * Latches the new DDC command. It will be sent in every slot until replaced or timed out
+     */
+    public synchronized void setDDC(int ddcRoll, int ddcPitch, int ddcZ, int ddcYaw, int command) {
+        this.ddcRoll = ddcRoll;
+        this.ddcPitch = ddcPitch;
+        this.ddcZ = ddcZ;
+        this.ddcYaw = ddcYaw;
+        this.ddcCommand = command;
+        this.ddcTime = System.nanoTime();
+        this.mode = MODE_DDC;
+    }
+
+    /**
+     * Sets what to send if no DDC command is latched
+     * @param mode MODE_WAYPOINTS to broadcast waypoints or MODE_NONE to send nothing (e.g. after motors off)
+     */
+    public synchronized void setMode(int mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Scheduler loop
+     */
+    @Override
+    public void run() {
+        logger.info("Starting link scheduler at " + settingsContainer.linkRate + " packets/s");
+        long slotPeriod = (long) (1000000000.0 / settingsContainer.linkRate);
+        long ddcTimeout = settingsContainer.linkDDCTimeout * 1000000L;
+        nextSlotTime = System.nanoTime() + slotPeriod;
+        while (schedulerRunning) {
+            try {
+                // Wait for the slot time
+                long timeLeft;
+                while ((timeLeft = nextSlotTime - System.nanoTime()) > 0 && schedulerRunning)
+                    LockSupport.parkNanos(timeLeft);
+                if (!schedulerRunning)
+                    break;
+
+                // Check deadline (more than a half of the period late). Skip the whole missed slots
+                long lateness = -timeLeft;
+                if (lateness > slotPeriod / 2) {
+                    missedDeadlines += 1 + lateness / slotPeriod;
+                    nextSlotTime += (lateness / slotPeriod) * slotPeriod;
+                }
+                nextSlotTime += slotPeriod;
+
+                sendSlot(ddcTimeout);
+                slotsSent++;
+                logMissedDeadlines();
+            } catch (Exception e) {
+                logger.error("Error sending link slot!", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the latest DDC command, IDLE (if DDC command is outdated) or the next waypoint
+     * @param ddcTimeout DDC command timeout in nanoseconds
+     */
+    private void sendSlot(long ddcTimeout) {
+        int currentMode;
+        synchronized (this) {
+            currentMode = mode;
+            if (mode == MODE_DDC) {
+                if (System.nanoTime() - ddcTime <= ddcTimeout)
+                    linkSender.sendDDC(ddcRoll, ddcPitch, ddcZ, ddcYaw, ddcCommand);
+                else
+                    linkSender.sendIDLE();
+            }
+        }
+        if (currentMode == MODE_WAYPOINTS && positionHandler != null)
+            positionHandler.sendWaypoints();
+    }
+
+    /**
+     * Prints number of missed deadlines (not more often than once per second)
+     */
+    private void logMissedDeadlines() {
+        if (missedDeadlines != missedDeadlinesLogged && System.currentTimeMillis() - lastLogTime >= 1000) {
+            logger.warn((missedDeadlines - missedDeadlinesLogged) + " link slot deadlines missed");
+            missedDeadlinesLogged = missedDeadlines;
+            lastLogTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return System.nanoTime() of the next slot (when the latched DDC command will be sent)
+     */
+    public long getNextSlotTime() {
+        return nextSlotTime;
+    }
+
+    /**
+     * @return number of sent slots
+     */
+    public long getSlotsSent() {
+        return slotsSent;
+    }
+
+    /**
+     * @return number of slots that were sent more than a half of the period late or skipped
+     */
+    public long getMissedDeadlines() {
+        return missedDeadlines;
+    }
+
+    /**
+     * Stops the scheduler loop
+     */
+    public void stop() {
+        logger.warn("Stopping link scheduler");
+        schedulerRunning = false;
+    }
+}
@@ -36,6 +36,7 @@ public class LinkSender {
 
     private final SerialHandler serialHandler;
     private final UDPHandler udpHandler;
+    private final LatencyMonitor latencyMonitor;
 
     private final byte[] linkBuffer;
 
@@ -48,14 +49,18 @@ public class LinkSender {
 
     /**
      * This class forms a Liberty-Link protocol packet
-     * and sends it to the drone in two possible ways: via a serial or UDP port
+     * and sends it to the drone in two possible ways: via a serial or UDP port.
+     * Packets are formed under the lock and copied into the transmit queues, so any thread can send
      * @param serialHandler SerialHandler class object to send data
      * @param udpHandler UDPHandler class object to send data
      * @param settingsContainer SettingsContainer class that stores droneDataSuffix1 and droneDataSuffix2
+     * @param latencyMonitor LatencyMonitor class object to record send time
      */
-    LinkSender(SerialHandler serialHandler, UDPHandler udpHandler, SettingsContainer settingsContainer) {
+    LinkSender(SerialHandler serialHandler, UDPHandler udpHandler, SettingsContainer settingsContainer,
+               LatencyMonitor latencyMonitor) {
         this.serialHandler = serialHandler;
         this.udpHandler = udpHandler;
+        this.latencyMonitor = latencyMonitor;
         this.linkBuffer = new byte[12];
         this.linkBuffer[10] = settingsContainer.droneDataSuffix1;
         this.linkBuffer[11] = settingsContainer.droneDataSuffix2;
@@ -66,14 +71,14 @@ public class LinkSender {
      * Link command: P = 0, CCC = CMD_BITS_IDLE, XXXX = 0000
      */
     public void sendIDLE() {
-        pushCommand(CMD_BITS_IDLE, 0);
+        pushCommand(CMD_BITS_IDLE, 0, false);
     }
 
     /**
      * Sends direct corrections (from positionContainer) to the drone (optical stabilization & landing)
      * Link command = P = 0, CCC = command, XXXX = 0000
      */
-    public void sendDDC(int ddcRoll, int ddcPitch, int ddcZ, int ddcYaw, int command) {
+    public synchronized void sendDDC(int ddcRoll, int ddcPitch, int ddcZ, int ddcYaw, int command) {
         // Form the DDC data package
         // Roll
         linkBuffer[0] = (byte) ((ddcRoll >> 8) & 0xFF);
@@ -95,7 +100,7 @@ public class LinkSender {
         linkBuffer[8] = (byte) command;
 
         // Transmit direct control data
-        pushLinkData();
+        pushLinkData(false);
     }
 
     /**
@@ -104,7 +109,7 @@ public class LinkSender {
      * @param command first 3 bits of command (after P bit) - CCC
      * @param waypointIndex index of waypoint (0 - 15) - XXXX
      */
-    public void sendWaypoint(GPS gps, int command, int waypointIndex) {
+    public synchronized void sendWaypoint(GPS gps, int command, int waypointIndex) {
         // Get integer values
         int latInt = gps.getLatInt();
         int lonInt = gps.getLonInt();
@@ -129,7 +134,7 @@ public class LinkSender {
         linkBuffer[8] = (byte) ((0b10000000 | command | waypointIndex) & 0xFF);
 
         // Transmit GPS coordinates
-        pushLinkData();
+        pushLinkData(false);
     }
 
     /**
@@ -137,7 +142,7 @@ public class LinkSender {
      * Link command: P = 0, CCC = CMD_BITS_DDC_LAND, XXXX = 0000
      */
     public void sendMotorsOFF() {
-        pushCommand(CMD_BITS_DDC_LAND, 0);
+        pushCommand(CMD_BITS_DDC_LAND, 0, true);
     }
 
     /**
@@ -145,7 +150,7 @@ public class LinkSender {
      * Link command: P = 0, CCC = CMD_BITS_AUTO_TAKEOFF, XXXX = 0000
      */
     public void sendTakeoff() {
-        pushCommand(CMD_BITS_AUTO_TAKEOFF, 0);
+        pushCommand(CMD_BITS_AUTO_TAKEOFF, 0, true);
     }
 
     /**
@@ -153,7 +158,7 @@ public class LinkSender {
      * Link command: P = 0, CCC = CMD_BITS_AUTO_LAND, XXXX = 0000
      */
     public void sendLand() {
-        pushCommand(CMD_BITS_AUTO_LAND, 0);
+        pushCommand(CMD_BITS_AUTO_LAND, 0, true);
     }
 
 
@@ -163,15 +168,16 @@ public class LinkSender {
      */
     public void sendFTS() {
         logger.error("Sending FTS command!");
-        pushCommand(CMD_BITS_FTS, 0b1111);
+        pushCommand(CMD_BITS_FTS, 0b1111, true);
     }
 
     /**
      * Pushes command (P = 0) (PCCCXXXX)
      * @param commandBits first 3 bits of command (after P bit) - CCC
      * @param bodyBits last 4 bits of command (aka data bits) - XXXX
+     * @param priority true to send the packet before all queued DDC and waypoint packets
      */
-    private void pushCommand(int commandBits, int bodyBits) {
+    private synchronized void pushCommand(int commandBits, int bodyBits, boolean priority) {
         // Trim variables
         commandBits = ((commandBits & 0b00000111) << 4) & 0b01110000;
         bodyBits = bodyBits & 0b00001111;
@@ -184,23 +190,26 @@ public class LinkSender {
         linkBuffer[8] = (byte) ((commandBits | bodyBits) & 0xFF);
 
         // Transmit data
-        pushLinkData();
+        pushLinkData(priority);
     }
 
     /**
      * Pushes bytes buffer to Liberty-Link port via Serial or UDP
+     * @param priority true to send the packet before all normal packets
      */
-    private void pushLinkData() {
+    private void pushLinkData(boolean priority) {
+        long timeStart = System.nanoTime();
+
         // Calculate check byte
         byte checkByte = 0;
         for (int i = 0; i <= 8; i++)
             checkByte = (byte) (checkByte ^ linkBuffer[i]);
         linkBuffer[9] = checkByte;
 
-        // Transmit data
-        serialHandler.setDataBuffer(linkBuffer);
-        udpHandler.setUdpData(linkBuffer);
-        serialHandler.pushData();
-        udpHandler.pushData();
+        // Queue data (the buffer is copied, so it can be reused right away)
+        serialHandler.send(linkBuffer, priority);
+        udpHandler.send(linkBuffer, priority);
+
+        latencyMonitor.record(LatencyMonitor.STAGE_SEND, System.nanoTime() - timeStart);
     }
 }
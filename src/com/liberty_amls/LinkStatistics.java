@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import java.util.Arrays;
+
+/**
+ * Rolling link quality statistics of one receive stream (drone telemetry or platform).
+ * Packet inter-arrival times are collected into a fixed-bucket histogram.
+ * Once per second, packet rate, inter-arrival percentiles, jitter, checksum failure rate and resyncs are published
+ */
+public class LinkStatistics {
+    /**
+     * Statistics of one window
+     */
+    public static class Report {
+        /** Valid packets per second */
+        public final double packetsRate;
+        /** Median, 99th percentile and maximum of the packet inter-arrival time in milliseconds */
+        public final double intervalP50, intervalP99, intervalMax;
+        /** Smoothed inter-arrival jitter in milliseconds */
+        public final double jitter;
+        /** Part of the received packets (0 - 1) with the wrong check byte */
+        public final double checksumFailureRate;
+        /** Number of resyncs (suffix not exactly one packet after the previous one) */
+        public final long resyncs;
+
+        private Report(double packetsRate, double intervalP50, double intervalP99, double intervalMax,
+                       double jitter, double checksumFailureRate, long resyncs) {
+            this.packetsRate = packetsRate;
+            this.intervalP50 = intervalP50;
+            this.intervalP99 = intervalP99;
+            this.intervalMax = intervalMax;
+            this.jitter = jitter;
+            this.checksumFailureRate = checksumFailureRate;
+            this.resyncs = resyncs;
+        }
+    }
+
+    // Publishing period
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    // Histogram resolution is 1 ms up to 1 s. Slower intervals are counted in the last bucket
+    private static final long BUCKET_NANOS = 1000000;
+    private static final int BUCKETS_NUM = 1001;
+
+    private final PacketDecoder packetDecoder;
+    private final long[] histogram = new long[BUCKETS_NUM];
+    private long windowStart = System.nanoTime(), lastPacketTime = 0, lastInterval = -1, intervalsNum = 0;
+    private long maxInterval = 0;
+    private long packetsStart = 0, checksumErrorsStart = 0, resyncsStart = 0;
+
+    // Smoothed jitter (RFC 3550): mean deviation of consecutive inter-arrival times
+    private double jitterNanos = 0;
+
+    // Last published report
+    private Report report = new Report(0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * @param packetDecoder PacketDecoder of the stream (source of the checksum errors and resyncs counters)
+     */
+    public LinkStatistics(PacketDecoder packetDecoder) {
+        this.packetDecoder = packetDecoder;
+    }
+
+    /**
+     * Records arrival of a valid packet. Called by the parser
+     */
+    public synchronized void onPacket() {
+        long time = System.nanoTime();
+        roll(time);
+        if (lastPacketTime > 0) {
+            long interval = time - lastPacketTime;
+            histogram[(int) Math.min(interval / BUCKET_NANOS, BUCKETS_NUM - 1)]++;
+            intervalsNum++;
+            if (interval > maxInterval)
+                maxInterval = interval;
+            if (lastInterval >= 0)
+                jitterNanos += (Math.abs(interval - lastInterval) - jitterNanos) / 16.0;
+            lastInterval = interval;
+        }
+        lastPacketTime = time;
+    }
+
+    /**
+     * Publishes the report and starts the new window if the current one is over
+     * (also called by snapshot(), so the report is updated even if no packets are received)
+     * @param time current System.nanoTime()
+     */
+    private void roll(long time) {
+        if (time - windowStart < WINDOW_NANOS)
+            return;
+        double windowSeconds = (time - windowStart) / 1e9;
+        long packets = packetDecoder.getPackets();
+        long checksumErrors = packetDecoder.getChecksumErrors();
+        long resyncsTotal = packetDecoder.getResyncs();
+        long packetsDelta = packets - packetsStart;
+        long checksumErrorsDelta = checksumErrors - checksumErrorsStart;
+
+        report = new Report(packetsDelta / windowSeconds, percentile(0.50), percentile(0.99), maxInterval / 1e6,
+                jitterNanos / 1e6, packetsDelta + checksumErrorsDelta > 0
+                ? (double) checksumErrorsDelta / (packetsDelta + checksumErrorsDelta) : 0,
+                resyncsTotal - resyncsStart);
+
+        // Start the new window
+        Arrays.fill(histogram, 0);
+        intervalsNum = 0;
+        maxInterval = 0;
+        packetsStart = packets;
+        checksumErrorsStart = checksumErrors;
+        resyncsStart = resyncsTotal;
+        windowStart = time;
+    }
+
+    /**
+     * @param fraction percentile (0 - 1)
+     * @return upper bound of the percentile bucket in milliseconds (0 if no intervals)
+     */
+    private double percentile(double fraction) {
+        if (intervalsNum == 0)
+            return 0;
+        long rank = (long) Math.ceil(intervalsNum * fraction);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKETS_NUM; i++) {
+            accumulated += histogram[i];
+            if (accumulated >= rank)
+                return Math.min((i + 1) * BUCKET_NANOS, maxInterval) / 1e6;
+        }
+        return maxInterval / 1e6;
+    }
+
+    /**
+     * Publishes the report if the current window is over and returns the last published report.
+     * All values of the report belong to the same window
+     * @return the last published report (immutable)
+     */
+    public synchronized Report snapshot() {
+        roll(System.nanoTime());
+        return report;
+    }
+}
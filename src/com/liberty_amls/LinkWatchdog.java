@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One scheduler thread for the link loss deadlines and periodic link tasks (platform requests).
+ * A deadline is armed by the first packet and fires exactly lost time after the last packet (monotonic clock).
+ * Packets only update the time of the last packet, so nothing is rescheduled per packet
+ */
+public class LinkWatchdog {
+    /**
+     * Receives loss and recovery events of all links
+     */
+    public interface LinkListener {
+        /**
+         * @param linkName name of the lost link
+         */
+        void onLinkLost(String linkName);
+
+        /**
+         * @param linkName name of the restored link
+         */
+        void onLinkRestored(String linkName);
+    }
+
+    /**
+     * Loss deadline of one link
+     */
+    public class Deadline implements Runnable {
+        private final String linkName;
+        private final long timeoutNanos;
+        private final Runnable onLost, onRestored;
+        private long lastPacketTime;
+        private boolean lost = true, armed = false;
+
+        private Deadline(String linkName, long timeoutMillis, Runnable onLost, Runnable onRestored) {
+            this.linkName = linkName;
+            this.timeoutNanos = timeoutMillis * 1000000L;
+            this.onLost = onLost;
+            this.onRestored = onRestored;
+        }
+
+        /**
+         * Must be called on each valid packet. Restores the link and arms the deadline if needed
+         */
+        public void feed() {
+            boolean restored;
+            synchronized (this) {
+                lastPacketTime = System.nanoTime();
+                restored = lost;
+                lost = false;
+                if (!armed) {
+                    armed = true;
+                    executor.schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (restored) {
+                onRestored.run();
+                LinkListener listener = linkListener;
+                if (listener != null)
+                    listener.onLinkRestored(linkName);
+            }
+        }
+
+        /**
+         * Deadline check. Re-arms itself for the last packet time if packets were received
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                long timeLeft = lastPacketTime + timeoutNanos - System.nanoTime();
+                if (timeLeft > 0) {
+                    executor.schedule(this, timeLeft, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                lost = true;
+                armed = false;
+            }
+            onLost.run();
+            LinkListener listener = linkListener;
+            if (listener != null)
+                listener.onLinkLost(linkName);
+        }
+
+        /**
+         * @return true if no packets were received during the lost time (or at all)
+         */
+        public synchronized boolean isLost() {
+            return lost;
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private volatile LinkListener linkListener;
+
+    public LinkWatchdog() {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Link watchdog");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Creates new (not armed) deadline. The link is considered lost until the first packet
+     * @param linkName name of the link (for listener)
+     * @param timeoutMillis lost time in milliseconds
+     * @param onLost called from the watchdog thread when the link is lost
+     * @param onRestored called from the packet thread when the first packet after the loss is received
+     * @return Deadline class object
+     */
+    public Deadline createDeadline(String linkName, long timeoutMillis, Runnable onLost, Runnable onRestored) {
+        return new Deadline(linkName, timeoutMillis, onLost, onRestored);
+    }
+
+    /**
+     * Runs the task periodically in the watchdog thread
+     * @param task task that must not throw exceptions
+     * @param periodMillis period in milliseconds
+     * @return ScheduledFuture to cancel the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+        return executor.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param linkListener receiver of loss and recovery events of all links (PositionHandler)
+     */
+    public void setLinkListener(LinkListener linkListener) {
+        this.linkListener = linkListener;
+    }
+
+    /**
+     * Stops the watchdog thread
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
@@ -78,7 +78,9 @@ public class Main {
                         "\nopencv - check opencv native library" +
                         "\ncamera - test opencv library and cameras" +
                         "\nserver - check if the server can be started" +
-                        "\nfull - full environmental check")
+                        "\nfull - full environmental check" +
+                        "\nvision - detection benchmark on the synthetic marker scene" +
+                        "\nlink - link benchmark with the loopback firmware emulators (UDP)")
                 .required(false)
                 .build());
         CommandLineParser parser = new DefaultParser();
@@ -144,7 +146,7 @@ public class Main {
             // Print help message if wrong arguments provided
             formatter.printHelp(
                     "java -jar Liberty-Way.jar " +
-                            "[-t build/opencv/camera/server/full] [-i <ip>] [-sp <server_port>] [-vp <video_port>] [-c]"
+                            "[-t build/opencv/camera/server/full/vision/link] [-i <ip>] [-sp <server_port>] [-vp <video_port>] [-c]"
                     , options);
             // Exit because no correct arguments provided
             System.exit(1);
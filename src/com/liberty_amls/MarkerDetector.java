@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.Board;
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class finds the allowed ARUco marker on the gray frame.
+ * Once the marker is locked, the search is narrowed down to the predicted region of interest.
+ * Before the lock, the marker is searched on a downscaled frame first (coarse-to-fine pyramid search).
+ * If the board is configured, any visible markers of the board are used to estimate one board pose
+ */
+public class MarkerDetector {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final SettingsContainer settingsContainer;
+    private final Dictionary dictionary;
+    private final DetectorParameters detectorParameters;
+    private final DetectorTuner detectorTuner;
+    private final Mat cameraMatrix, cameraDistortions;
+
+    // Board of markers (null if the single marker is used)
+    private final Board board;
+
+    private final MatOfInt ids = new MatOfInt();
+    private final List<Mat> corners = new ArrayList<>();
+
+    // Reusable buffers (to avoid allocations in the detection loop)
+    private final float[] cornersBuffer = new float[8];
+    private int[] idsBuffer = new int[16];
+    private double boundsMinX, boundsMinY, boundsMaxX, boundsMaxY;
+    private final Scalar roiOffset = new Scalar(0, 0);
+
+    // Region of interest tracking. Region sizes are rounded up to ROI_QUANTUM pixels,
+    // so the region buffer is reallocated only when the marker size changes noticeably
+    private static final int ROI_QUANTUM = 32;
+    private final Rect roi = new Rect();
+    private final Mat roiGray = new Mat();
+    private final Size roiSize = new Size();
+    private final Point roiCenter = new Point();
+    private boolean markerLocked = false;
+    private int roiMisses = 0;
+    private double lastCenterX, lastCenterY, velocityX, velocityY, lastMarkerSize;
+    private boolean roiUsed = false;
+
+    // Pyramid search
+    private final Mat pyramidGray = new Mat();
+    private final Size pyramidSize = new Size();
+    private int fullScanSkips = 0;
+
+    // Native Mats created by the detector (the Java binding creates one Mat per found marker)
+    private long nativeAllocations = 0;
+
+    /**
+     * @param cameraMatrix camera matrix (from camera calibration)
+     * @param cameraDistortions camera distortions (from camera calibration)
+     */
+    public MarkerDetector(Mat cameraMatrix, Mat cameraDistortions, SettingsContainer settingsContainer) {
+        this.cameraMatrix = cameraMatrix;
+        this.cameraDistortions = cameraDistortions;
+        this.settingsContainer = settingsContainer;
+
+        // Load ARUco dictionary from settings
+        this.dictionary = Aruco.getPredefinedDictionary(settingsContainer.arucoDictionary);
+
+        // Create ARUco parameters (adaptive thresholding) from settings
+        this.detectorParameters = DetectorParameters.create();
+        this.detectorParameters.set_adaptiveThreshConstant(settingsContainer.adaptiveThreshConstant);
+
+        // Adjust detector parameters to the measured detection time
+        if (settingsContainer.detectorTargetTime > 0) {
+            this.detectorTuner = new DetectorTuner(settingsContainer);
+            this.detectorTuner.apply(detectorParameters);
+        } else
+            this.detectorTuner = null;
+
+        // Create board from settings
+        this.board = settingsContainer.boardMarkerIDs.isEmpty() ? null : createBoard();
+    }
+
+    /**
+     * Creates the board of markers. Each marker is set by its ID, size and center position on the board.
+     * The origin of the board is the landing point
+     * @return Board class object
+     */
+    private Board createBoard() {
+        List<Mat> objectPoints = new ArrayList<>();
+        Mat boardIds = new Mat(settingsContainer.boardMarkerIDs.size(), 1, CvType.CV_32S);
+        for (int i = 0; i < settingsContainer.boardMarkerIDs.size(); i++) {
+            double[] marker = settingsContainer.boardMarkerPositions.get(i);
+            float half = (float) (marker[0] / 2), x = (float) marker[1], y = (float) marker[2];
+
+            // Same corners order as ARUco uses (top-left, top-right, bottom-right, bottom-left)
+            Mat markerPoints = new Mat(4, 1, CvType.CV_32FC3);
+            markerPoints.put(0, 0, x - half, y + half, 0, x + half, y + half, 0,
+                    x + half, y - half, 0, x - half, y - half, 0);
+            objectPoints.add(markerPoints);
+            boardIds.put(i, 0, settingsContainer.boardMarkerIDs.get(i));
+        }
+        logger.info("Board of " + objectPoints.size() + " markers created");
+        return Board.create(objectPoints, dictionary, boardIds);
+    }
+
+    /**
+     * Detects the marker on the gray frame
+     * @param gray gray frame
+     * @param trackingAllowed set to true to allow region of interest tracking (STAB, LAND and PREV modes)
+     * @return true if exactly one allowed marker was found
+     */
+    public boolean detect(Mat gray, boolean trackingAllowed) {
+        long timeStart = System.nanoTime();
+        roiUsed = false;
+
+        // Reset the lock if tracking is not allowed in current mode
+        if (!trackingAllowed || !settingsContainer.roiTrackingEnabled)
+            markerLocked = false;
+
+        // Fall back to a full-frame scan after too many misses
+        if (markerLocked && roiMisses >= settingsContainer.roiMaxMisses) {
+            logger.warn("The marker is not found in the region of interest. Scanning the full frame");
+            markerLocked = false;
+        }
+
+        boolean markerFound;
+        if (markerLocked) {
+            // Search only around the predicted position
+            predictROI(gray.cols(), gray.rows());
+            roiUsed = true;
+            markerFound = detectInROI(gray);
+            if (markerFound)
+                roiMisses = 0;
+            else
+                roiMisses++;
+        } else if (!settingsContainer.pyramidScales.isEmpty()) {
+            // Coarse-to-fine search
+            markerFound = pyramidSearch(gray);
+        } else {
+            // Full-frame scan
+            detectMarkers(gray);
+            markerFound = isAllowedMarkerFound();
+        }
+
+        // Update tracking state
+        if (markerFound)
+            updateTrack(!markerLocked);
+        markerLocked = markerFound || markerLocked;
+        if (!trackingAllowed || !settingsContainer.roiTrackingEnabled)
+            markerLocked = false;
+
+        // Select detector parameters for the next frames
+        if (detectorTuner != null && detectorTuner.update(System.nanoTime() - timeStart, markerFound))
+            detectorTuner.apply(detectorParameters);
+
+        return markerFound;
+    }
+
+    /**
+     * Detects markers only inside the current region of interest
+     * and returns their corners to the full frame coordinates
+     * @param gray full gray frame
+     * @return true if only one allowed marker was found
+     */
+    private boolean detectInROI(Mat gray) {
+        // Copy the region into the reusable buffer (integer center, so pixels are copied without interpolation)
+        roiSize.width = roi.width;
+        roiSize.height = roi.height;
+        roiCenter.x = roi.x + (roi.width - 1) / 2.0;
+        roiCenter.y = roi.y + (roi.height - 1) / 2.0;
+        long roiData = roiGray.dataAddr();
+        Imgproc.getRectSubPix(gray, roiSize, roiCenter, roiGray);
+        if (roiGray.dataAddr() != roiData)
+            nativeAllocations++;
+        detectMarkers(roiGray);
+
+        // Return corners to full frame coordinates
+        roiOffset.val[0] = roi.x;
+        roiOffset.val[1] = roi.y;
+        for (Mat corner : corners)
+            Core.add(corner, roiOffset, corner);
+
+        return isAllowedMarkerFound();
+    }
+
+    /**
+     * Searches for the marker on the downscaled frames (from the lowest scale to the highest)
+     * and refines its corners at full resolution only inside the found region
+     * @param gray full gray frame
+     * @return true if only one allowed marker was found
+     */
+    private boolean pyramidSearch(Mat gray) {
+        for (double scale : settingsContainer.pyramidScales) {
+            if (scale >= 1.0) {
+                // Full resolution level (only every pyramid_full_scan_period misses). Nothing to refine
+                if (++fullScanSkips < settingsContainer.pyramidFullScanPeriod)
+                    return false;
+                fullScanSkips = 0;
+                detectMarkers(gray);
+                return isAllowedMarkerFound();
+            }
+
+            // Detect on the downscaled frame
+            pyramidSize.width = Math.max(1, Math.round(gray.cols() * scale));
+            pyramidSize.height = Math.max(1, Math.round(gray.rows() * scale));
+            long pyramidData = pyramidGray.dataAddr();
+            Imgproc.resize(gray, pyramidGray, pyramidSize, 0, 0, Imgproc.INTER_AREA);
+            if (pyramidGray.dataAddr() != pyramidData)
+                nativeAllocations++;
+            detectMarkers(pyramidGray);
+
+            if (isAllowedMarkerFound()) {
+                // Region of the found marker at full resolution
+                markersBoundsToROI(1.0 / scale, gray.cols(), gray.rows());
+                roiUsed = true;
+
+                // Refine corners at full resolution
+                if (detectInROI(gray))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Detects markers on the image. Corners of the previous detection are released first.
+     * Rejected candidates are not requested, so the binding creates Mats only for the found markers
+     * (camera matrix is needed only for the contour corner refinement that is not used)
+     * @param image gray frame or its part
+     */
+    private void detectMarkers(Mat image) {
+        releaseDetections();
+        Aruco.detectMarkers(image, dictionary, corners, ids, detectorParameters);
+        nativeAllocations += corners.size();
+    }
+
+    /**
+     * Calculates the padded region of interest around the marker
+     * @param marker corners of the marker
+     * @param scale scale factor of the corners to the full frame
+     * @param frameWidth width of the full gray frame
+     * @param frameHeight height of the full gray frame
+     */
+    private void markersBoundsToROI(double scale, int frameWidth, int frameHeight) {
+        calculateBounds(scale);
+        // One pixel of the lower level is 1 / scale pixels of the full frame
+        double halfSize = Math.max(boundsMaxX - boundsMinX, boundsMaxY - boundsMinY)
+                * (1 + settingsContainer.roiPadding) / 2.0 + scale;
+        setROI((boundsMinX + boundsMaxX) / 2.0, (boundsMinY + boundsMaxY) / 2.0, halfSize,
+                frameWidth, frameHeight);
+    }
+
+    /**
+     * Calculates bounding box of all accepted markers (allowed marker or markers of the board)
+     * @param scale scale factor of the corners to the full frame
+     */
+    private void calculateBounds(double scale) {
+        boundsMinX = Double.MAX_VALUE;
+        boundsMinY = Double.MAX_VALUE;
+        boundsMaxX = -Double.MAX_VALUE;
+        boundsMaxY = -Double.MAX_VALUE;
+        int markersNum = readIds();
+        for (int i = 0; i < markersNum; i++) {
+            if (!isMarkerAccepted(idsBuffer[i]))
+                continue;
+            corners.get(i).get(0, 0, cornersBuffer);
+            for (int j = 0; j < 4; j++) {
+                boundsMinX = Math.min(boundsMinX, cornersBuffer[j * 2] * scale);
+                boundsMinY = Math.min(boundsMinY, cornersBuffer[j * 2 + 1] * scale);
+                boundsMaxX = Math.max(boundsMaxX, cornersBuffer[j * 2] * scale);
+                boundsMaxY = Math.max(boundsMaxY, cornersBuffer[j * 2 + 1] * scale);
+            }
+        }
+    }
+
+    /**
+     * Copies IDs of the found markers into the reusable buffer
+     * @return number of found markers
+     */
+    private int readIds() {
+        int markersNum = (int) ids.total();
+        if (idsBuffer.length < markersNum)
+            idsBuffer = new int[markersNum];
+        if (markersNum > 0)
+            ids.get(0, 0, idsBuffer);
+        return markersNum;
+    }
+
+    /**
+     * @param id ID of the marker
+     * @return true if the marker is allowed (single marker) or belongs to the board
+     */
+    private boolean isMarkerAccepted(int id) {
+        if (board == null)
+            return settingsContainer.allowedIDs.contains(id);
+        return settingsContainer.boardMarkerIDs.contains(id);
+    }
+
+    /**
+     * Checks number of found markers and their IDs
+     * @return true if only one marker was found and it is allowed
+     * (or at least one marker of the board was found if the board is used)
+     */
+    private boolean isAllowedMarkerFound() {
+        // Any marker of the board is enough to estimate the board pose
+        if (board != null) {
+            int markersNum = readIds();
+            for (int i = 0; i < markersNum; i++)
+                if (isMarkerAccepted(idsBuffer[i]))
+                    return true;
+            return false;
+        }
+
+        // Print warning message if more than one marker detected
+        if (ids.total() > 1)
+            logger.warn("More than one marker found!");
+
+        // Make sure that only one marker was found and it is allowed
+        return ids.total() == 1 && settingsContainer.allowedIDs.contains((int) ids.get(0, 0)[0]);
+    }
+
+    /**
+     * Stores marker's center, velocity and size to predict the next region of interest
+     * @param newTrack set to true if the marker was just acquired (velocity is unknown)
+     */
+    private void updateTrack(boolean newTrack) {
+        calculateBounds(1.0);
+        double centerX = (boundsMinX + boundsMaxX) / 2.0;
+        double centerY = (boundsMinY + boundsMaxY) / 2.0;
+
+        if (newTrack) {
+            velocityX = 0;
+            velocityY = 0;
+            roiMisses = 0;
+        } else {
+            velocityX = centerX - lastCenterX;
+            velocityY = centerY - lastCenterY;
+        }
+        lastCenterX = centerX;
+        lastCenterY = centerY;
+        lastMarkerSize = Math.max(boundsMaxX - boundsMinX, boundsMaxY - boundsMinY);
+    }
+
+    /**
+     * Calculates the padded region of interest around the predicted marker's position
+     * @param frameWidth width of the gray frame
+     * @param frameHeight height of the gray frame
+     */
+    private void predictROI(int frameWidth, int frameHeight) {
+        // Predicted center (constant velocity, one step per missed frame)
+        double steps = roiMisses + 1;
+        double centerX = lastCenterX + velocityX * steps;
+        double centerY = lastCenterY + velocityY * steps;
+
+        // Half-size of the region (marker size with padding and motion margin)
+        double halfSize = lastMarkerSize * (1 + settingsContainer.roiPadding) / 2.0
+                + Math.max(Math.abs(velocityX), Math.abs(velocityY)) * steps;
+
+        setROI(centerX, centerY, halfSize, frameWidth, frameHeight);
+    }
+
+    /**
+     * Sets square region of interest cropped to the frame
+     * @param centerX center of the region
+     * @param centerY center of the region
+     * @param halfSize half of the region side
+     * @param frameWidth width of the gray frame
+     * @param frameHeight height of the gray frame
+     */
+    private void setROI(double centerX, double centerY, double halfSize, int frameWidth, int frameHeight) {
+        // Crop region to the frame
+        int x1 = (int) Math.max(0, centerX - halfSize);
+        int y1 = (int) Math.max(0, centerY - halfSize);
+        int x2 = (int) Math.min(frameWidth, centerX + halfSize);
+        int y2 = (int) Math.min(frameHeight, centerY + halfSize);
+        if (x2 - x1 < 2 || y2 - y1 < 2) {
+            x1 = 0;
+            y1 = 0;
+            x2 = frameWidth;
+            y2 = frameHeight;
+        }
+
+        // Round the size up and keep the region inside the frame
+        roi.width = Math.min(frameWidth, (x2 - x1 + ROI_QUANTUM - 1) / ROI_QUANTUM * ROI_QUANTUM);
+        roi.height = Math.min(frameHeight, (y2 - y1 + ROI_QUANTUM - 1) / ROI_QUANTUM * ROI_QUANTUM);
+        roi.x = Math.max(0, Math.min(x1 - (roi.width - (x2 - x1)) / 2, frameWidth - roi.width));
+        roi.y = Math.max(0, Math.min(y1 - (roi.height - (y2 - y1)) / 2, frameHeight - roi.height));
+    }
+
+    /**
+     * Estimates pose of the found marker (or of the whole board if the board is used)
+     * @param rVec output rotation vector
+     * @param tVec output translation vector
+     * @return true if the pose was estimated
+     */
+    public boolean estimatePose(Mat rVec, Mat tVec) {
+        if (board == null) {
+            Aruco.estimatePoseSingleMarkers(corners, settingsContainer.markerSize,
+                    cameraMatrix, cameraDistortions, rVec, tVec);
+            return true;
+        }
+        return Aruco.estimatePoseBoard(corners, ids, board, cameraMatrix, cameraDistortions, rVec, tVec) > 0;
+    }
+
+    /**
+     * Releases native memory of the corners from the previous detection.
+     * Detector creates new corner Mats on each call, so old ones must be released explicitly
+     */
+    private void releaseDetections() {
+        for (Mat corner : corners)
+            corner.release();
+        corners.clear();
+    }
+
+    /**
+     * @return total number of native Mats created by the detector
+     * (found markers corners and reallocations of the region and pyramid buffers)
+     */
+    public long getNativeAllocations() {
+        return nativeAllocations;
+    }
+
+    /**
+     * @return size of the native data of the detector buffers in bytes (ids, corners, region and pyramid buffers)
+     */
+    public long getNativeBytesHeld() {
+        long bytes = OpenCVHandler.matBytes(ids) + OpenCVHandler.matBytes(roiGray)
+                + OpenCVHandler.matBytes(pyramidGray);
+        for (Mat corner : corners)
+            bytes += OpenCVHandler.matBytes(corner);
+        return bytes;
+    }
+
+    /**
+     * Releases all native buffers of the detector
+     */
+    public void release() {
+        releaseDetections();
+        ids.release();
+        roiGray.release();
+        pyramidGray.release();
+    }
+
+    /**
+     * @return corners of the detected markers (in full frame coordinates)
+     */
+    public List<Mat> getCorners() {
+        return corners;
+    }
+
+    /**
+     * @return X center of the last found marker (or of the found markers of the board) on the frame
+     */
+    public double getMarkerCenterX() {
+        return lastCenterX;
+    }
+
+    /**
+     * @return Y center of the last found marker (or of the found markers of the board) on the frame
+     */
+    public double getMarkerCenterY() {
+        return lastCenterY;
+    }
+
+    /**
+     * @return size of the last found marker (or of the found markers of the board) on the frame (in pixels)
+     */
+    public double getMarkerSize() {
+        return lastMarkerSize;
+    }
+
+    /**
+     * @return true if the last detection was performed only in the region of interest
+     */
+    public boolean isROIUsed() {
+        return roiUsed;
+    }
+}
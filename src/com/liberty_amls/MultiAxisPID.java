@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+/**
+ * PID controller of several axes with the explicit time step. Coefficients and state of all axes are stored
+ * in primitive arrays (one index per axis), so all axes are computed in one call without allocations.
+ * Gains are in seconds: output = F * setpoint + P * error + I * integral(error dt) + D * d(-measurement)/dt.
+ * The derivative is taken from the measurement (no kick on setpoint change) and low-pass filtered.
+ * The integral is not accumulated while the output is saturated in the direction of the error (anti-windup)
+ */
+public class MultiAxisPID {
+    private final int axesNum;
+
+    // Coefficients
+    private final double[] kP, kI, kD, kF;
+    private final double[] derivativeFilter, rampRate, outputLimit;
+    private final boolean[] reversed;
+
+    // State
+    private final double[] integral, derivative, lastMeasurement, lastOutput;
+    private final boolean[] firstRun;
+
+    /**
+     * @param axesNum number of axes
+     */
+    public MultiAxisPID(int axesNum) {
+        this.axesNum = axesNum;
+        this.kP = new double[axesNum];
+        this.kI = new double[axesNum];
+        this.kD = new double[axesNum];
+        this.kF = new double[axesNum];
+        this.derivativeFilter = new double[axesNum];
+        this.rampRate = new double[axesNum];
+        this.outputLimit = new double[axesNum];
+        this.reversed = new boolean[axesNum];
+        this.integral = new double[axesNum];
+        this.derivative = new double[axesNum];
+        this.lastMeasurement = new double[axesNum];
+        this.lastOutput = new double[axesNum];
+        this.firstRun = new boolean[axesNum];
+        reset();
+    }
+
+    /**
+     * Sets coefficients of the axis
+     * @param axis index of the axis
+     * @param p proportional gain
+     * @param i integral gain (per second)
+     * @param d derivative gain (seconds)
+     * @param f feed-forward gain
+     * @param derivativeFilter time constant of the derivative low-pass filter in seconds (0 - no filter)
+     * @param rampRate maximum change of the output per second (0 - no limit)
+     * @param outputLimit maximum absolute output (0 - no limit)
+     * @param reversed true to invert the output
+     */
+    public void setAxis(int axis, double p, double i, double d, double f,
+                        double derivativeFilter, double rampRate, double outputLimit, boolean reversed) {
+        this.kP[axis] = p;
+        this.kI[axis] = i;
+        this.kD[axis] = d;
+        this.kF[axis] = f;
+        this.derivativeFilter[axis] = derivativeFilter;
+        this.rampRate[axis] = rampRate;
+        this.outputLimit[axis] = outputLimit;
+        this.reversed[axis] = reversed;
+    }
+
+    /**
+     * Computes outputs of all axes
+     * @param setpoints setpoints of the axes
+     * @param measurements measured (or estimated) values of the axes
+     * @param dt time since the previous computation in seconds
+     * @param outputs array for the outputs of the axes
+     */
+    public void compute(double[] setpoints, double[] measurements, double dt, double[] outputs) {
+        for (int axis = 0; axis < axesNum; axis++) {
+            double error = setpoints[axis] - measurements[axis];
+
+            // Start from the current measurement (no derivative on the first step)
+            if (firstRun[axis]) {
+                lastMeasurement[axis] = measurements[axis];
+                derivative[axis] = 0;
+                lastOutput[axis] = kF[axis] * setpoints[axis] + kP[axis] * error;
+                firstRun[axis] = false;
+            }
+
+            // Filtered derivative on measurement
+            if (dt > 0) {
+                double rawDerivative = (lastMeasurement[axis] - measurements[axis]) / dt;
+                derivative[axis] += (rawDerivative - derivative[axis]) * dt / (derivativeFilter[axis] + dt);
+            }
+            lastMeasurement[axis] = measurements[axis];
+
+            // Output without the new integral step
+            double output = kF[axis] * setpoints[axis] + kP[axis] * error + kD[axis] * derivative[axis];
+
+            // Integrate only if the output with the new integral is not saturated in the direction of the error
+            double newIntegral = integral[axis] + error * dt;
+            double withIntegral = output + kI[axis] * newIntegral;
+            if (outputLimit[axis] == 0 || Math.abs(withIntegral) < outputLimit[axis]
+                    || Math.signum(withIntegral) != Math.signum(error))
+                integral[axis] = newIntegral;
+            output += kI[axis] * integral[axis];
+
+            // Limit rate and value of the output
+            if (rampRate[axis] != 0)
+                output = constrain(output, lastOutput[axis] - rampRate[axis] * dt,
+                        lastOutput[axis] + rampRate[axis] * dt);
+            if (outputLimit[axis] != 0)
+                output = constrain(output, -outputLimit[axis], outputLimit[axis]);
+            lastOutput[axis] = output;
+
+            outputs[axis] = reversed[axis] ? -output : output;
+        }
+    }
+
+    /**
+     * Resets integral, derivative and output history of all axes
+     */
+    public void reset() {
+        for (int axis = 0; axis < axesNum; axis++) {
+            integral[axis] = 0;
+            derivative[axis] = 0;
+            lastOutput[axis] = 0;
+            firstRun[axis] = true;
+        }
+    }
+
+    /**
+     * @return value limited by min and max
+     */
+    private static double constrain(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -30,20 +30,12 @@
 package com.liberty_amls;
 
 import org.apache.log4j.Logger;
-import org.opencv.aruco.Aruco;
-import org.opencv.aruco.DetectorParameters;
-import org.opencv.aruco.Dictionary;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
 import org.opencv.core.Point;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.videoio.VideoCapture;
-import org.opencv.videoio.Videoio;
 
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.List;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.toDegrees;
@@ -51,37 +43,56 @@ import static java.lang.Math.toDegrees;
 public class OpenCVHandler implements Runnable {
     private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
     private final SettingsContainer settingsContainer;
-    private final PositionHandler positionHandler;
+    private final PoseFuser poseFuser;
+    private final int cameraIndex;
     private final PositionContainer positionContainer;
     private final TelemetryContainer telemetryContainer;
     private final PlatformContainer platformContainer;
     private final OSDHandler osdHandler;
-    private final VideoCapture videoCapture;
-    private final int cameraID;
-    private Dictionary dictionary;
+    private final FrameGrabber frameGrabber;
+    private final LatencyMonitor latencyMonitor;
+    private MarkerDetector markerDetector;
     private boolean openCVRunning;
     private int framesCount;
     private long timeStart;
     private final DecimalFormat decimalFormat = new DecimalFormat("#.#");
     private Mat cameraMatrix, cameraDistortions;
-    private final Mat frame = new Mat(), gray = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat rVec = new Mat(), tVec = new Mat(), rMat = new Mat();
+    private final double[] tBuffer = new double[3], rBuffer = new double[9];
+
+    // Transformation from this camera to the primary camera frame (only for the extra cameras)
+    private boolean extrinsicUsed = false;
+    private final double[] extrinsicRotation = new double[9], extrinsicTranslation = new double[3];
+    private final double[] transformBuffer = new double[9];
+
+    // Native buffers of the detection loop (measured every FPS measure period)
+    private long periodNativeAllocations;
+    private volatile long nativeBytesHeld = 0;
+    private volatile double nativeAllocationsPerFrame = 0;
+
+    private double cameraExposure = 0;
     private int pushOSDAfterFrames, osdFramesCounter = 0;
 
     /**
-     * This class reads frame from camera, estimate ARUco marker position
-     * and provides it to the other classes
+     * This class takes the newest frame from the FrameGrabber, estimate ARUco marker position
+     * and provides it to the other classes. Only the primary camera (index 0) updates the OSD
+     * @param cameraIndex index of the platform camera (0 - primary camera)
+     * @param latencyMonitor LatencyMonitor class object (only the primary camera records latency)
      */
-    public OpenCVHandler(int cameraID,
-                         VideoCapture videoCapture,
-                         PositionHandler positionHandler,
+    public OpenCVHandler(int cameraIndex,
+                         FrameGrabber frameGrabber,
+                         PoseFuser poseFuser,
+                         LatencyMonitor latencyMonitor,
                          PositionContainer positionContainer,
                          TelemetryContainer telemetryContainer,
                          PlatformContainer platformContainer,
                          OSDHandler osdHandler,
                          SettingsContainer settingsContainer) {
-        this.cameraID = cameraID;
-        this.videoCapture = videoCapture;
-        this.positionHandler = positionHandler;
+        this.cameraIndex = cameraIndex;
+        this.frameGrabber = frameGrabber;
+        this.poseFuser = poseFuser;
+        this.latencyMonitor = latencyMonitor;
         this.positionContainer = positionContainer;
         this.telemetryContainer = telemetryContainer;
         this.platformContainer = platformContainer;
@@ -96,12 +107,20 @@ public class OpenCVHandler implements Runnable {
      */
     public boolean start() {
         try {
-            // Load camera corrections from jsons
-            cameraMatrix = FileWorkers.loadCameraMatrix(settingsContainer.cameraMatrixFile);
-            cameraDistortions = FileWorkers.loadCameraDistortions(settingsContainer.cameraDistortionsFile);
+            // Load camera corrections from jsons (extra cameras have their own calibration files)
+            if (cameraIndex == 0) {
+                cameraMatrix = FileWorkers.loadCameraMatrix(settingsContainer.cameraMatrixFile);
+                cameraDistortions = FileWorkers.loadCameraDistortions(settingsContainer.cameraDistortionsFile);
+            } else {
+                cameraMatrix = FileWorkers.loadCameraMatrix(
+                        settingsContainer.extraCameraMatrixFiles.get(cameraIndex - 1));
+                cameraDistortions = FileWorkers.loadCameraDistortions(
+                        settingsContainer.extraCameraDistortionsFiles.get(cameraIndex - 1));
+                setExtrinsic(settingsContainer.extraCameraExtrinsics.get(cameraIndex - 1));
+            }
 
-            // Load ARUco dictionary from settings
-            dictionary = Aruco.getPredefinedDictionary(settingsContainer.arucoDictionary);
+            // Create marker detector (ARUco dictionary and detector parameters are loaded from settings)
+            markerDetector = new MarkerDetector(cameraMatrix, cameraDistortions, settingsContainer);
 
             // Set after how many frame the frame will be pushed to the OSD class
             pushOSDAfterFrames = settingsContainer.pushOSDAfterFrames;
@@ -110,30 +129,13 @@ public class OpenCVHandler implements Runnable {
             positionContainer.frameSetpoint = new Point(settingsContainer.frameWidth / 2.0,
                     settingsContainer.frameHeight / 2.0);
 
-            // Start camera with provided ID
-            logger.info("Opening camera with id: " + cameraID);
-            videoCapture.open(cameraID);
-            videoCapture.set(Videoio.CAP_PROP_FRAME_WIDTH, settingsContainer.frameWidth);
-            videoCapture.set(Videoio.CAP_PROP_FRAME_HEIGHT, settingsContainer.frameHeight);
-            if (settingsContainer.disableAutoExposure)
-                videoCapture.set(Videoio.CAP_PROP_AUTO_EXPOSURE, 0);
-            if (settingsContainer.disableAutoWB)
-                videoCapture.set(Videoio.CAP_PROP_AUTO_WB, 0);
-            if (settingsContainer.disableAutoFocus)
-                videoCapture.set(Videoio.CAP_PROP_AUTOFOCUS, 0);
-            videoCapture.set(Videoio.CAP_PROP_EXPOSURE, settingsContainer.maxExposure);
-
-            // Capture the first frame
-            videoCapture.read(frame);
-
-            // Check if camera opened and first frame is not empty
-            if (videoCapture.isOpened() && !frame.empty()) {
+            // Open the camera and capture the first frame
+            if (frameGrabber.open()) {
                 openCVRunning = true;
-                logger.info("Camera " + cameraID + " opened!");
                 return true;
             }
         } catch (Exception e) {
-            logger.error("Error opening camera " + cameraID + " !", e);
+            logger.error("Error starting OpenCV handler!", e);
         }
         return false;
     }
@@ -144,77 +146,80 @@ public class OpenCVHandler implements Runnable {
      */
     @Override
     public void run() {
-        // Create ARUco parameters (adaptive thresholding) from settings
-        DetectorParameters detectorParameters = DetectorParameters.create();
-        detectorParameters.set_adaptiveThreshConstant(settingsContainer.adaptiveThreshConstant);
-
         // Create local variable to calculate yaw angle
         double yaw = 0;
 
-        // Transfer the current frame to the OSDHandler class
-        osdHandler.setSourceFrame(frame);
+        // Transfer the first frame to the OSDHandler class
+        if (cameraIndex == 0)
+            osdHandler.setSourceFrame(frameGrabber.getFrontFrame());
 
-        while (openCVRunning && videoCapture.isOpened()) {
-            // Wait for the frame to be read
-            if (videoCapture.read(frame) && !frame.empty()) {
+        // Start counting allocations of the loop
+        periodNativeAllocations = markerDetector.getNativeAllocations();
+
+        while (openCVRunning && frameGrabber.isRunning()) {
+            // Take the newest frame. Older frames that were not processed in time are dropped
+            Mat frame = frameGrabber.takeLatestFrame(settingsContainer.frameTimeout);
+            if (frame != null && !frame.empty()) {
                 try {
+                    // Capture time of the frame and time when the detector took it
+                    long timeGrab = frameGrabber.getFrontFrameTime();
+                    long timeStage = recordLatency(LatencyMonitor.STAGE_GRAB, timeGrab);
+
                     // Convert current frame to grayscale
                     Imgproc.cvtColor(frame, gray, Imgproc.COLOR_RGB2GRAY);
+                    timeStage = recordLatency(LatencyMonitor.STAGE_GRAY, timeStage);
 
                     // Check gray frame
-                    positionContainer.isFrameNormal = !gray.empty();
-
-                    // Detect ARUco markers
-                    MatOfInt ids = new MatOfInt();
-                    List<Mat> corners = new ArrayList<>();
-                    List<Mat> rejectedImgPoints = new ArrayList<>();
-                    Aruco.detectMarkers(gray, dictionary, corners, ids,
-                            detectorParameters, rejectedImgPoints, cameraMatrix, cameraDistortions);
-
-                    // Print warning message if more than one marker detected
-                    if (ids.total() > 1)
-                        logger.warn("More than one marker found!");
-
-                    // Make sure that only one marker was found and it is allowed
-                    if (ids.total() == 1 && settingsContainer.allowedIDs.contains((int)ids.get(0, 0)[0])) {
-
-                        // Estimate position of the marker
-                        Mat rVec = new Mat();
-                        Mat tVec = new Mat();
-                        Mat rMat = new Mat();
-                        Aruco.estimatePoseSingleMarkers(corners, settingsContainer.markerSize,
-                                cameraMatrix, cameraDistortions, rVec, tVec);
-                        double[] tArr = tVec.get(0, 0);
+                    if (cameraIndex == 0)
+                        positionContainer.isFrameNormal = !gray.empty();
+
+                    // Detect ARUco marker (only in the region of interest if the marker is locked)
+                    boolean markerFound = markerDetector.detect(gray,
+                            positionContainer.status == PositionContainer.STATUS_STAB
+                                    || positionContainer.status == PositionContainer.STATUS_LAND
+                                    || positionContainer.status == PositionContainer.STATUS_PREV);
+                    timeStage = recordLatency(LatencyMonitor.STAGE_DETECT, timeStage);
+
+                    // Make sure that only one marker (or markers of the board) was found and it is allowed
+                    // and estimate position of the marker (rVec and tVec are reused)
+                    if (markerFound && markerDetector.estimatePose(rVec, tVec)) {
+                        tVec.get(0, 0, tBuffer);
 
                         // Calculate euler angles (only yaw) from rVec
                         Calib3d.Rodrigues(rVec, rMat);
-                        if (Math.sqrt(rMat.get(0, 0)[0] * rMat.get(0, 0)[0] +
-                                rMat.get(1, 0)[0] * rMat.get(1, 0)[0]) >= 1e-6) {
-                            yaw = toDegrees(Math.atan2(rMat.get(1, 0)[0], rMat.get(0, 0)[0]) +
-                                    Math.PI / 2);
+                        rMat.get(0, 0, rBuffer);
+
+                        // Move the pose to the primary camera frame, so poses of all cameras can be fused
+                        if (extrinsicUsed)
+                            transformToPrimaryCamera();
+                        if (Math.sqrt(rBuffer[0] * rBuffer[0] + rBuffer[3] * rBuffer[3]) >= 1e-6) {
+                            yaw = toDegrees(Math.atan2(rBuffer[3], rBuffer[0]) + Math.PI / 2);
                             if (yaw > 180)
                                 yaw -= 360;
                         }
+                        timeStage = recordLatency(LatencyMonitor.STAGE_POSE, timeStage);
 
                         // Calculate marker's center if video stream is enabled
-                        if (osdHandler.isStreamEnabled()) {
-                            // (TopLeftX + BottomRightX) / 2, (TopLeftY + BottomRightY) / 2
-                            Point center = new Point(((int) corners.get(0).get(0, 0)[0]
-                                    + (int) corners.get(0).get(0, 2)[0]) / 2.0,
-                                    ((int) corners.get(0).get(0, 0)[1]
-                                            + (int) corners.get(0).get(0, 2)[1]) / 2.0);
-                            center.x = positionContainer.frameCurrent.x * settingsContainer.inputFilter
-                                    + center.x * (1 - settingsContainer.inputFilter);
-                            center.y = positionContainer.frameCurrent.y * settingsContainer.inputFilter
-                                    + center.y * (1 - settingsContainer.inputFilter);
-                            positionContainer.frameCurrent = center;
+                        if (cameraIndex == 0 && osdHandler.isStreamEnabled()) {
+                            double centerX = markerDetector.getMarkerCenterX();
+                            double centerY = markerDetector.getMarkerCenterY();
+                            Point frameCurrent = positionContainer.frameCurrent;
+                            frameCurrent.x = frameCurrent.x * settingsContainer.inputFilter
+                                    + centerX * (1 - settingsContainer.inputFilter);
+                            frameCurrent.y = frameCurrent.y * settingsContainer.inputFilter
+                                    + centerY * (1 - settingsContainer.inputFilter);
                         }
 
-                        // Transfer estimated position of the marker to the PositionHandler class
-                        positionHandler.proceedPosition(true, tArr[0], tArr[1], tArr[2], yaw);
+                        // Transfer estimated position of the marker to the PositionHandler class (through fuser)
+                        poseFuser.proceedPosition(cameraIndex, true, tBuffer[0], tBuffer[1], tBuffer[2], yaw,
+                                markerDetector.getMarkerSize(), timeGrab);
                     } else
                         // If no correct markers detected
-                        positionHandler.proceedPosition(false);
+                        poseFuser.proceedPosition(cameraIndex, false, 0, 0, 0, 0, 0, timeGrab);
+
+                    // Time of the position handling (pose estimator feed) and the whole frame
+                    recordLatency(LatencyMonitor.STAGE_POSITION, timeStage);
+                    recordLatency(LatencyMonitor.STAGE_TOTAL, timeGrab);
 
                     // Adjust camera exposure
                     adaptiveExposure();
@@ -224,35 +229,122 @@ public class OpenCVHandler implements Runnable {
                     long timeCurrent = System.currentTimeMillis();
                     if (timeCurrent - timeStart > settingsContainer.fpsMeasurePeriod) {
                         // If 'fps_measure_period' passes
+                        // Native bytes held by the reusable buffers and native Mats allocated per frame
+                        nativeBytesHeld = frameGrabber.getNativeBytesHeld() + markerDetector.getNativeBytesHeld()
+                                + matBytes(gray) + matBytes(rVec) + matBytes(tVec) + matBytes(rMat);
+                        nativeAllocationsPerFrame = (double) (markerDetector.getNativeAllocations()
+                                - periodNativeAllocations) / framesCount;
                         double fps = (double) framesCount / (timeCurrent - timeStart) * 1000.0;
 
+                        // Publish latency histograms of this period
+                        if (cameraIndex == 0)
+                            latencyMonitor.publish();
+
                         // Transfer FPS to the OSD Class and log it
-                        osdHandler.setFps(decimalFormat.format(fps));
-                        if (settingsContainer.logFPS)
-                            logger.info("FPS: " + decimalFormat.format(fps));
+                        if (cameraIndex == 0)
+                            osdHandler.setFps(decimalFormat.format(fps));
+                        if (settingsContainer.logFPS) {
+                            logger.info("Camera " + cameraIndex + " FPS: " + decimalFormat.format(fps)
+                                    + ", dropped frames: " + frameGrabber.getFramesDropped()
+                                    + ", native bytes held: " + nativeBytesHeld
+                                    + ", native allocations per frame: "
+                                    + decimalFormat.format(nativeAllocationsPerFrame));
+                            if (cameraIndex == 0)
+                                logger.info("Total latency p50: "
+                                        + decimalFormat.format(latencyMonitor.getP50(LatencyMonitor.STAGE_TOTAL))
+                                        + " ms, p99: "
+                                        + decimalFormat.format(latencyMonitor.getP99(LatencyMonitor.STAGE_TOTAL))
+                                        + " ms, max: "
+                                        + decimalFormat.format(latencyMonitor.getMax(LatencyMonitor.STAGE_TOTAL))
+                                        + " ms");
+                        }
                         framesCount = 0;
 
-                        // Restart timer
+                        // Restart timer and allocation counters
                         timeStart = System.currentTimeMillis();
+                        periodNativeAllocations = markerDetector.getNativeAllocations();
                     }
 
                     // Push frame to the OSD class
                     osdFramesCounter++;
-                    if (osdFramesCounter > pushOSDAfterFrames) {
+                    if (cameraIndex == 0 && osdFramesCounter > pushOSDAfterFrames) {
                         osdFramesCounter = 0;
+                        osdHandler.setSourceFrame(frame);
                         osdHandler.proceedNewFrame();
                     }
                 } catch (Exception e) {
-                    positionContainer.isFrameNormal = false;
+                    if (cameraIndex == 0)
+                        positionContainer.isFrameNormal = false;
                     logger.error("Error processing the frame!", e);
-                    positionHandler.proceedPosition(false);
+                    poseFuser.proceedPosition(cameraIndex);
                 }
-            } else {
-                positionContainer.isFrameNormal = false;
-                logger.error("Can't read the frame!");
-                positionHandler.proceedPosition(false);
+            } else if (openCVRunning && frameGrabber.isRunning()) {
+                if (cameraIndex == 0)
+                    positionContainer.isFrameNormal = false;
+                logger.error("No new frame from camera " + cameraIndex
+                        + " within " + settingsContainer.frameTimeout + " ms!");
+                poseFuser.proceedPosition(cameraIndex);
             }
         }
+
+        // Release native buffers of the loop
+        markerDetector.release();
+        gray.release();
+        rVec.release();
+        tVec.release();
+        rMat.release();
+    }
+
+    /**
+     * Calculates the rotation matrix of the extra camera (R = Rz * Ry * Rx)
+     * @param extrinsic position [x, y, z] and rotation [x, y, z] (in degrees) of the camera in the primary camera frame
+     */
+    private void setExtrinsic(double[] extrinsic) {
+        double sinX = Math.sin(Math.toRadians(extrinsic[3])), cosX = Math.cos(Math.toRadians(extrinsic[3]));
+        double sinY = Math.sin(Math.toRadians(extrinsic[4])), cosY = Math.cos(Math.toRadians(extrinsic[4]));
+        double sinZ = Math.sin(Math.toRadians(extrinsic[5])), cosZ = Math.cos(Math.toRadians(extrinsic[5]));
+        extrinsicRotation[0] = cosZ * cosY;
+        extrinsicRotation[1] = cosZ * sinY * sinX - sinZ * cosX;
+        extrinsicRotation[2] = cosZ * sinY * cosX + sinZ * sinX;
+        extrinsicRotation[3] = sinZ * cosY;
+        extrinsicRotation[4] = sinZ * sinY * sinX + cosZ * cosX;
+        extrinsicRotation[5] = sinZ * sinY * cosX - cosZ * sinX;
+        extrinsicRotation[6] = -sinY;
+        extrinsicRotation[7] = cosY * sinX;
+        extrinsicRotation[8] = cosY * cosX;
+        System.arraycopy(extrinsic, 0, extrinsicTranslation, 0, 3);
+        extrinsicUsed = true;
+    }
+
+    /**
+     * Transforms the marker position (tBuffer) and rotation (rBuffer) from this camera to the primary camera frame
+     */
+    private void transformToPrimaryCamera() {
+        // Position: t = R * t + T
+        for (int i = 0; i < 3; i++)
+            transformBuffer[i] = extrinsicRotation[i * 3] * tBuffer[0] + extrinsicRotation[i * 3 + 1] * tBuffer[1]
+                    + extrinsicRotation[i * 3 + 2] * tBuffer[2] + extrinsicTranslation[i];
+        System.arraycopy(transformBuffer, 0, tBuffer, 0, 3);
+
+        // Rotation: R = R * Rmarker
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 3; j++)
+                transformBuffer[i * 3 + j] = extrinsicRotation[i * 3] * rBuffer[j]
+                        + extrinsicRotation[i * 3 + 1] * rBuffer[3 + j] + extrinsicRotation[i * 3 + 2] * rBuffer[6 + j];
+        System.arraycopy(transformBuffer, 0, rBuffer, 0, 9);
+    }
+
+    /**
+     * Records the time passed since the start of the stage (only for the primary camera)
+     * @param stage one of LatencyMonitor.STAGE_... constants
+     * @param timeStart System.nanoTime() of the start of the stage
+     * @return System.nanoTime() of the end of the stage
+     */
+    private long recordLatency(int stage, long timeStart) {
+        long timeCurrent = System.nanoTime();
+        if (cameraIndex == 0)
+            latencyMonitor.record(stage, timeCurrent - timeStart);
+        return timeCurrent;
     }
 
     /**
@@ -277,11 +369,17 @@ public class OpenCVHandler implements Runnable {
             newExposure = settingsContainer.maxExposure;
 
         // Set new exposure to camera
-        if (abs(platformContainer.cameraExposure - newExposure) > 0.5 && settingsContainer.disableAutoExposure) {
-            platformContainer.cameraExposure = newExposure;
-            videoCapture.set(Videoio.CAP_PROP_EXPOSURE, platformContainer.cameraExposure);
+        if (abs(cameraExposure - newExposure) > 0.5 && settingsContainer.disableAutoExposure) {
+            cameraExposure = newExposure;
+            frameGrabber.setExposure(cameraExposure);
+            if (cameraIndex == 0)
+                platformContainer.cameraExposure = cameraExposure;
         }
 
+        // Backlight is controlled only by the primary camera
+        if (cameraIndex != 0)
+            return;
+
         // Turn on backlight if current mode is not IDLE or DONE
         if (positionContainer.status != PositionContainer.STATUS_IDLE
                 && positionContainer.status != PositionContainer.STATUS_DONE) {
@@ -304,11 +402,34 @@ public class OpenCVHandler implements Runnable {
             platformContainer.backlight = false;
     }
 
+    /**
+     * @return native bytes held by the reusable buffers of the detection loop (updated every FPS measure period).
+     * It should stay flat while the frame size doesn't change
+     */
+    public long getNativeBytesHeld() {
+        return nativeBytesHeld;
+    }
+
+    /**
+     * @return native Mats created by the detection loop per frame (updated every FPS measure period)
+     */
+    public double getNativeAllocationsPerFrame() {
+        return nativeAllocationsPerFrame;
+    }
+
+    /**
+     * @param mat Mat object
+     * @return size of the Mat data in bytes (0 if Mat is released)
+     */
+    static long matBytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
     /**
      * @return true if current openCV frame is empty
      */
     public boolean isFrameEmpty() {
-        return frame.empty();
+        return frameGrabber.getFrontFrame().empty();
     }
 
     /**
@@ -317,6 +438,6 @@ public class OpenCVHandler implements Runnable {
     public void stop() {
         logger.warn("Stopping OpenCV handler");
         openCVRunning = false;
-        videoCapture.release();
+        frameGrabber.stop();
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder of the fixed-length packets that end with the check byte and two suffix bytes
+ * (Liberty-Link telemetry and platform packets). Packets are resynchronized on the suffix pair
+ * and validated by XOR of all data bytes.
+ * Complete packets inside the input are handed to the listener without copying.
+ * Only a packet split between two inputs is assembled in the internal buffer
+ */
+public class PacketDecoder {
+    /**
+     * Receives valid packets
+     */
+    public interface PacketListener {
+        /**
+         * @param packet buffer with the packet (valid only during the call)
+         * @param offset absolute index of the first byte of the packet in the buffer
+         */
+        void onPacket(ByteBuffer packet, int offset);
+    }
+
+    private final int packetLength;
+    private final byte suffix1, suffix2;
+    private final PacketListener packetListener;
+
+    // Tail of the previous input (the beginning of the split packet)
+    private final byte[] pending;
+    private int pendingLength = 0;
+    private final byte[] assembled;
+    private final ByteBuffer assembledBuffer;
+    private boolean previousIsSuffix1 = false;
+    private long bytesSinceSuffix = 0;
+
+    // Written only by the decoding thread
+    private volatile long packets = 0, checksumErrors = 0, resyncs = 0;
+
+    /**
+     * @param packetLength length of the packet (including check byte and suffix)
+     * @param suffix1 first suffix byte
+     * @param suffix2 second suffix byte
+     * @param packetListener callback for valid packets
+     */
+    public PacketDecoder(int packetLength, byte suffix1, byte suffix2, PacketListener packetListener) {
+        this.packetLength = packetLength;
+        this.suffix1 = suffix1;
+        this.suffix2 = suffix2;
+        this.packetListener = packetListener;
+        this.pending = new byte[packetLength - 1];
+        this.assembled = new byte[packetLength];
+        this.assembledBuffer = ByteBuffer.wrap(assembled);
+    }
+
+    /**
+     * Decodes all bytes between position and limit of the input. Position is moved to the limit
+     * @param input received bytes
+     */
+    public void decode(ByteBuffer input) {
+        int segmentStart = input.position();
+        int limit = input.limit();
+        for (int i = segmentStart; i < limit; i++) {
+            byte currentByte = input.get(i);
+            if (previousIsSuffix1 && currentByte == suffix2) {
+                // Suffix found. Check how many bytes were received since the previous suffix
+                int inputBytes = i - segmentStart + 1;
+                long segmentLength = bytesSinceSuffix + inputBytes;
+                if (segmentLength != packetLength)
+                    resyncs++;
+
+                if (inputBytes >= packetLength) {
+                    // The whole packet is inside the input
+                    handlePacket(input, i - packetLength + 1);
+                } else if (pendingLength + inputBytes >= packetLength) {
+                    // The beginning of the packet is in the previous input
+                    int fromPending = packetLength - inputBytes;
+                    System.arraycopy(pending, pendingLength - fromPending, assembled, 0, fromPending);
+                    for (int j = 0; j < inputBytes; j++)
+                        assembled[fromPending + j] = input.get(segmentStart + j);
+                    handlePacket(assembledBuffer, 0);
+                }
+
+                // Start new segment after the suffix
+                segmentStart = i + 1;
+                bytesSinceSuffix = 0;
+                pendingLength = 0;
+                previousIsSuffix1 = false;
+            } else
+                previousIsSuffix1 = currentByte == suffix1;
+        }
+
+        // Keep the tail of the current segment for the next input
+        int tailLength = limit - segmentStart;
+        bytesSinceSuffix += tailLength;
+        if (tailLength >= pending.length) {
+            for (int j = 0; j < pending.length; j++)
+                pending[j] = input.get(limit - pending.length + j);
+            pendingLength = pending.length;
+        } else if (tailLength > 0) {
+            int keep = Math.min(pendingLength, pending.length - tailLength);
+            System.arraycopy(pending, pendingLength - keep, pending, 0, keep);
+            for (int j = 0; j < tailLength; j++)
+                pending[keep + j] = input.get(segmentStart + j);
+            pendingLength = keep + tailLength;
+        }
+        input.position(limit);
+    }
+
+    /**
+     * Validates the check byte and hands the packet to the listener
+     * @param buffer buffer with the packet
+     * @param offset absolute index of the first byte of the packet
+     */
+    private void handlePacket(ByteBuffer buffer, int offset) {
+        byte checkByte = 0;
+        for (int i = 0; i < packetLength - 3; i++)
+            checkByte ^= buffer.get(offset + i);
+
+        if (checkByte == buffer.get(offset + packetLength - 3)) {
+            packets++;
+            packetListener.onPacket(buffer, offset);
+        } else
+            checksumErrors++;
+    }
+
+    /**
+     * @return number of valid packets
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return number of packets with wrong check byte
+     */
+    public long getChecksumErrors() {
+        return checksumErrors;
+    }
+
+    /**
+     * @return number of suffixes found not exactly one packet length after the previous one
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+}
@@ -31,8 +31,8 @@ package com.liberty_amls;
 
 import org.apache.log4j.Logger;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * This class communicates with the platform via the serial port
@@ -47,17 +47,24 @@ public class PlatformHandler implements Runnable {
     private final WaypointsContainer waypointsContainer;
     private final GPSPredictor gpsPredictor;
 
-    private final byte[] platformRxBuffer = new byte[18];
     private final byte[] platformTxBuffer = new byte[6];
 
-    private byte platformRxBytePrevious = 0;
-    private int platformRxBufferPosition = 0;
     private volatile boolean handleRunning;
 
+    // Serial bytes are taken from the SerialHandler ring in chunks (UDP datagrams are decoded by the UDPSelector thread)
+    private final byte[] receiveChunk = new byte[256];
+    private final ByteBuffer receiveChunkBuffer = ByteBuffer.wrap(receiveChunk);
+    private final PacketDecoder packetDecoder;
+    private final LinkStatistics linkStatistics;
+    private final LinkWatchdog linkWatchdog;
+    private final LinkWatchdog.Deadline lostDeadline;
+    private ScheduledFuture<?> requestsFuture;
+
     PlatformHandler(PlatformContainer platformContainer,
                     PositionContainer positionContainer,
                     SerialHandler serialHandler,
                     UDPHandler udpHandler,
+                    LinkWatchdog linkWatchdog,
                     SettingsContainer settingsContainer,
                     WaypointsContainer waypointsContainer) {
         this.platformContainer = platformContainer;
@@ -65,6 +72,13 @@ public class PlatformHandler implements Runnable {
         this.serialHandler = serialHandler;
         this.udpHandler = udpHandler;
         this.settingsContainer = settingsContainer;
+        this.packetDecoder = new PacketDecoder(18, settingsContainer.platformDataSuffix1,
+                settingsContainer.platformDataSuffix2, this::parsePacket);
+        this.linkStatistics = new LinkStatistics(packetDecoder);
+        this.udpHandler.setReceiveListener(this::decodeReceived);
+        this.linkWatchdog = linkWatchdog;
+        this.lostDeadline = linkWatchdog.createDeadline("Platform", settingsContainer.platformLostTime,
+                this::onPlatformLost, this::onPlatformRestored);
         this.waypointsContainer = waypointsContainer;
         this.gpsPredictor = new GPSPredictor();
 
@@ -73,135 +87,111 @@ public class PlatformHandler implements Runnable {
     }
 
     /**
-     * Starts the main loop
+     * Starts sending requests to the platform every platform_loop_timer from the LinkWatchdog thread
+     */
+    public void startRequests() {
+        requestsFuture = linkWatchdog.scheduleAtFixedRate(() -> {
+            try {
+                sendRequest();
+            } catch (Exception e) {
+                logger.error("Error sending data to the platform!", e);
+            }
+        }, settingsContainer.platformLoopTimer);
+    }
+
+    /**
+     * Decodes bytes received from the serial port. Must be started only if UDP is not used
      */
     @Override
     public void run() {
         // Set loop flag and start main loop
         logger.info("Starting main loop");
-
-        // Initialize timer
-        Timer platformTimer = new Timer("Platform timer");
-
-        // Create task for requesting data
-        TimerTask platformTask = new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    // Check platform lost status
-                    if (!platformContainer.platformLost &&
-                            System.currentTimeMillis() - platformContainer.platformLastPacketTime
-                                    >= settingsContainer.platformLostTime) {
-                        logger.error("Platform communication lost!");
-                        platformContainer.platformLost = true;
-                    }
-
-                    // Send request to the platform
-                    sendRequest();
-                } catch (Exception e) {
-                    logger.error("Error sending data to the platform!", e);
-                }
-            }
-        };
-
-        // Start timer
-        platformTimer.scheduleAtFixedRate(platformTask, settingsContainer.platformLoopTimer,
-                settingsContainer.platformLoopTimer);
-
-        // Start main loop
         handleRunning = true;
         while (handleRunning) {
             try {
-                // Read and parse data from serial or UDP port
-                if (udpHandler.isUdpPortOpened()) {
-                    readAndParse(udpHandler.takeSingleByte());
-                } else {
-                    readAndParse(serialHandler.takeSingleByte());
-                }
+                // Read and decode data from serial port
+                int bytesNum = serialHandler.readBytes(receiveChunk);
+                receiveChunkBuffer.clear();
+                receiveChunkBuffer.limit(bytesNum);
+                decodeReceived(receiveChunkBuffer);
             } catch (Exception e) {
                 logger.error("Error reading data from the platform!", e);
             }
         }
+    }
 
-        // Close timer if main loop finished
-        try {
-            platformTimer.cancel();
-            platformTask.cancel();
-        } catch (Exception ignored) { }
+    /**
+     * Decodes received bytes (from the serial port or UDP datagram)
+     * @param data received bytes between position and limit
+     */
+    private void decodeReceived(ByteBuffer data) {
+        long checksumErrors = packetDecoder.getChecksumErrors();
+        packetDecoder.decode(data);
+        if (packetDecoder.getChecksumErrors() != checksumErrors)
+            logger.warn("Wrong platform checksum");
     }
 
     /**
-     * Reads single byte to the buffer
-     * @param data single byte of data
+     * Parses a valid packet (check byte is already verified by the PacketDecoder)
+     * @param packet buffer with the packet
+     * @param offset index of the first byte of the packet
      */
-    private void readAndParse(byte data) {
-        platformRxBuffer[platformRxBufferPosition] = data;
-        if (platformRxBytePrevious == settingsContainer.platformDataSuffix1
-                && platformRxBuffer[platformRxBufferPosition] == settingsContainer.platformDataSuffix2) {
-            // If data suffix appears
-            // Reset buffer position
-            platformRxBufferPosition = 0;
-
-            // Reset check sum
-            byte checkByte = 0;
-
-            // Calculate check sum
-            for (int i = 0; i <= 14; i++)
-                checkByte ^= platformRxBuffer[i];
-
-            if (checkByte == platformRxBuffer[15]) {
-                // Parse data if the checksums are equal
-
-                // Error status
-                platformContainer.errorStatus = ((int) platformRxBuffer[0] & 0xFF);
-
-                // New GPS coordinates
-                platformContainer.gps.setFromInt(((int) platformRxBuffer[4] & 0xFF)
-                                | ((int) platformRxBuffer[3] & 0xFF) << 8
-                                | ((int) platformRxBuffer[2] & 0xFF) << 16
-                                | ((int) platformRxBuffer[1] & 0xFF) << 24,
-                        ((int) platformRxBuffer[8] & 0xFF)
-                                | ((int) platformRxBuffer[7] & 0xFF) << 8
-                                | ((int) platformRxBuffer[6] & 0xFF) << 16
-                                | ((int) platformRxBuffer[5] & 0xFF) << 24);
-
-                // Number of GPS satellites
-                platformContainer.gps.setSatellitesNum((int) platformRxBuffer[9] & 0xFF);
-
-                // Ground heading
-                platformContainer.gps.setGroundHeading((((int) platformRxBuffer[11] & 0xFF)
-                        | ((int) platformRxBuffer[10] & 0xFF) << 8) / 10.0);
-
-                // Platform's speed
-                platformContainer.gps.setGroundSpeed((((int) platformRxBuffer[13] & 0xFF)
-                        | ((int) platformRxBuffer[12] & 0xFF) << 8) / 10.0);
-
-                // Illumination from LUX meter
-                platformContainer.illumination = Math.pow(((int) platformRxBuffer[14] & 0xFF), 2.105);
-
-                // Increment packets counter
-                platformContainer.packetsNumber++;
-
-                // Handle new GPS coordinates
-                handleGPS();
-
-                // Reset timer and lost flag
-                if (platformContainer.platformLost)
-                    logger.warn("Platform communication restored");
-                platformContainer.platformLost = false;
-                platformContainer.platformLastPacketTime = System.currentTimeMillis();
-            } else
-                logger.warn("Wrong platform checksum");
-
-        } else {
-            // Store data bytes
-            platformRxBytePrevious = platformRxBuffer[platformRxBufferPosition];
-            platformRxBufferPosition++;
-
-            // Reset buffer on overflow
-            if (platformRxBufferPosition > 17)
-                platformRxBufferPosition = 0;
-        }
+    private void parsePacket(ByteBuffer packet, int offset) {
+        // Error status
+        platformContainer.errorStatus = ((int) packet.get(offset) & 0xFF);
+
+        // New GPS coordinates
+        platformContainer.gps.setFromInt(((int) packet.get(offset + 4) & 0xFF)
+                        | ((int) packet.get(offset + 3) & 0xFF) << 8
+                        | ((int) packet.get(offset + 2) & 0xFF) << 16
+                        | ((int) packet.get(offset + 1) & 0xFF) << 24,
+                ((int) packet.get(offset + 8) & 0xFF)
+                        | ((int) packet.get(offset + 7) & 0xFF) << 8
+                        | ((int) packet.get(offset + 6) & 0xFF) << 16
+                        | ((int) packet.get(offset + 5) & 0xFF) << 24);
+
+        // Number of GPS satellites
+        platformContainer.gps.setSatellitesNum((int) packet.get(offset + 9) & 0xFF);
+
+        // Ground heading
+        platformContainer.gps.setGroundHeading((((int) packet.get(offset + 11) & 0xFF)
+                | ((int) packet.get(offset + 10) & 0xFF) << 8) / 10.0);
+
+        // Platform's speed
+        platformContainer.gps.setGroundSpeed((((int) packet.get(offset + 13) & 0xFF)
+                | ((int) packet.get(offset + 12) & 0xFF) << 8) / 10.0);
+
+        // Illumination from LUX meter
+        platformContainer.illumination = Math.pow(((int) packet.get(offset + 14) & 0xFF), 2.105);
+
+        // Increment packets counter
+        platformContainer.packetsNumber++;
+        linkStatistics.onPacket();
+
+        // Handle new GPS coordinates
+        handleGPS();
+
+        // Re-arm lost deadline
+        platformContainer.platformLastPacketTime = System.currentTimeMillis();
+        lostDeadline.feed();
+    }
+
+    /**
+     * Called from the LinkWatchdog thread if no packets were received during platform_lost_time
+     */
+    private void onPlatformLost() {
+        logger.error("Platform communication lost! Serial overflows: " + serialHandler.getOverflows()
+                + ", dropped bytes: " + serialHandler.getDroppedBytes() + ", framing errors: " + packetDecoder.getResyncs()
+                + ", checksum errors: " + packetDecoder.getChecksumErrors());
+        platformContainer.platformLost = true;
+    }
+
+    /**
+     * Called from the decoding thread on the first packet after the loss
+     */
+    private void onPlatformRestored() {
+        logger.warn("Platform communication restored");
+        platformContainer.platformLost = false;
     }
 
     /**
@@ -245,10 +235,22 @@ public class PlatformHandler implements Runnable {
         platformTxBuffer[3] = checkByte;
 
         // Transmit data
-        serialHandler.setDataBuffer(platformTxBuffer);
-        udpHandler.setUdpData(platformTxBuffer);
-        serialHandler.pushData();
-        udpHandler.pushData();
+        serialHandler.send(platformTxBuffer, false);
+        udpHandler.send(platformTxBuffer, false);
+    }
+
+    /**
+     * @return decoder of the received packets (packets and errors counters)
+     */
+    public PacketDecoder getPacketDecoder() {
+        return packetDecoder;
+    }
+
+    /**
+     * @return rolling link quality statistics (packet rate, jitter, checksum failures)
+     */
+    public LinkStatistics getLinkStatistics() {
+        return linkStatistics;
     }
 
     /**
@@ -258,8 +260,10 @@ public class PlatformHandler implements Runnable {
         // Print warning
         logger.warn("Turning off platform communication");
 
-        // Stop main loop
+        // Stop main loop and requests
         handleRunning = false;
+        if (requestsFuture != null)
+            requestsFuture.cancel(false);
 
         // Turn off backlight
         platformContainer.backlight = false;
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+/**
+ * Constant-velocity Kalman estimator of the marker pose. X, Y, Z and yaw axes are filtered independently
+ * with [position, velocity] state. Measurements are timestamped by the frame capture time,
+ * so the pose can be extrapolated to the moment of sending DDC, and the state coasts through frames
+ * without the marker while the covariance grows
+ */
+public class PoseEstimator {
+    public static final int AXIS_X = 0;
+    public static final int AXIS_Y = 1;
+    public static final int AXIS_Z = 2;
+    public static final int AXIS_YAW = 3;
+    private static final int AXES_NUM = 4;
+
+    // State and covariance [[p00, p01], [p01, p11]] of each axis
+    private final double[] position = new double[AXES_NUM];
+    private final double[] velocity = new double[AXES_NUM];
+    private final double[] p00 = new double[AXES_NUM];
+    private final double[] p01 = new double[AXES_NUM];
+    private final double[] p11 = new double[AXES_NUM];
+
+    // Variances of the measurement and of the random acceleration
+    private final double[] measurementVariance = new double[AXES_NUM];
+    private final double[] accelerationVariance = new double[AXES_NUM];
+    private long stateTime;
+    private boolean initialized = false;
+
+    /**
+     * @param settingsContainer SettingsContainer class object (kalman_* noises)
+     */
+    public PoseEstimator(SettingsContainer settingsContainer) {
+        for (int axis = AXIS_X; axis <= AXIS_Z; axis++) {
+            measurementVariance[axis] = Math.pow(settingsContainer.kalmanPositionNoise, 2);
+            accelerationVariance[axis] = Math.pow(settingsContainer.kalmanAccelerationNoise, 2);
+        }
+        measurementVariance[AXIS_YAW] = Math.pow(settingsContainer.kalmanYawNoise, 2);
+        accelerationVariance[AXIS_YAW] = Math.pow(settingsContainer.kalmanYawAccelerationNoise, 2);
+    }
+
+    /**
+     * Starts estimation from the measured pose with zero velocity
+     * @param pose measured X, Y, Z and yaw (in degrees)
+     * @param measurementTime System.nanoTime() of the frame capture
+     */
+    public void reset(double[] pose, long measurementTime) {
+        for (int axis = 0; axis < AXES_NUM; axis++) {
+            position[axis] = pose[axis];
+            velocity[axis] = 0;
+            p00[axis] = measurementVariance[axis];
+            p01[axis] = 0;
+
+            // Velocity is unknown. Allow it to reach the distance of one measurement noise in 0.1 s
+            p11[axis] = measurementVariance[axis] * 100;
+        }
+        stateTime = measurementTime;
+        initialized = true;
+    }
+
+    /**
+     * Predicts the state to the measurement time and corrects it by the measured pose
+     * @param pose measured X, Y, Z and yaw (in degrees)
+     * @param measurementTime System.nanoTime() of the frame capture
+     * @param noiseScale multiplier of the measurement variance (drone tilt makes the pose less accurate)
+     */
+    public void update(double[] pose, long measurementTime, double noiseScale) {
+        if (!initialized) {
+            reset(pose, measurementTime);
+            return;
+        }
+        predict(measurementTime);
+        for (int axis = 0; axis < AXES_NUM; axis++) {
+            double innovation = pose[axis] - position[axis];
+            if (axis == AXIS_YAW)
+                innovation = wrapAngle(innovation);
+
+            // Kalman gain of the position measurement
+            double innovationVariance = p00[axis] + measurementVariance[axis] * noiseScale;
+            double gainPosition = p00[axis] / innovationVariance;
+            double gainVelocity = p01[axis] / innovationVariance;
+
+            position[axis] += gainPosition * innovation;
+            velocity[axis] += gainVelocity * innovation;
+            p11[axis] -= gainVelocity * p01[axis];
+            p01[axis] -= gainPosition * p01[axis];
+            p00[axis] -= gainPosition * p00[axis];
+        }
+        position[AXIS_YAW] = wrapAngle(position[AXIS_YAW]);
+    }
+
+    /**
+     * Moves the state forward without measurement (coasting). Older times are ignored
+     * @param time System.nanoTime() to predict to
+     */
+    public void predict(long time) {
+        double dt = (time - stateTime) / 1e9;
+        if (!initialized || dt <= 0)
+            return;
+        for (int axis = 0; axis < AXES_NUM; axis++) {
+            position[axis] += velocity[axis] * dt;
+            double q = accelerationVariance[axis];
+            p00[axis] += dt * (2 * p01[axis] + dt * p11[axis]) + q * dt * dt * dt * dt / 4;
+            p01[axis] += dt * p11[axis] + q * dt * dt * dt / 2;
+            p11[axis] += q * dt * dt;
+        }
+        position[AXIS_YAW] = wrapAngle(position[AXIS_YAW]);
+        stateTime = time;
+    }
+
+    /**
+     * Extrapolates the position without changing the state
+     * @param axis AXIS_X, AXIS_Y, AXIS_Z or AXIS_YAW
+     * @param time System.nanoTime() of the moment
+     * @return estimated position (or yaw in degrees) at the time
+     */
+    public double getPosition(int axis, long time) {
+        double estimated = position[axis] + velocity[axis] * Math.max(time - stateTime, 0) / 1e9;
+        return axis == AXIS_YAW ? wrapAngle(estimated) : estimated;
+    }
+
+    /**
+     * @param axis AXIS_X, AXIS_Y, AXIS_Z or AXIS_YAW
+     * @return estimated velocity (per second)
+     */
+    public double getVelocity(int axis) {
+        return velocity[axis];
+    }
+
+    /**
+     * @param axis AXIS_X, AXIS_Y, AXIS_Z or AXIS_YAW
+     * @return standard deviation of the position estimate
+     */
+    public double getPositionDeviation(int axis) {
+        return Math.sqrt(p00[axis]);
+    }
+
+    /**
+     * @return true if the estimator was started by the measurement
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * @param angle angle in degrees
+     * @return angle in range [-180, 180)
+     */
+    private static double wrapAngle(double angle) {
+        return angle - 360 * Math.floor((angle + 180) / 360);
+    }
+}
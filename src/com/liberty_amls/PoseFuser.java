@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+/**
+ * This class fuses marker poses from several platform cameras into one PositionHandler input.
+ * Poses of the extra cameras are already transformed to the primary camera frame by their OpenCVHandlers
+ * (extra_camera_extrinsics). The first camera is the clock: the fused pose is sent every time it finishes a frame
+ */
+public class PoseFuser {
+    private final PositionHandler positionHandler;
+    private final SettingsContainer settingsContainer;
+
+    // The latest measurement of each camera
+    private final boolean[] markersFound;
+    private final double[][] poses;
+    private final double[] weights;
+    private final long[] measurementsTime;
+
+    /**
+     * @param positionHandler PositionHandler class object
+     * @param camerasNum number of platform cameras
+     * @param settingsContainer SettingsContainer class object
+     */
+    public PoseFuser(PositionHandler positionHandler, int camerasNum, SettingsContainer settingsContainer) {
+        this.positionHandler = positionHandler;
+        this.settingsContainer = settingsContainer;
+        this.markersFound = new boolean[camerasNum];
+        this.poses = new double[camerasNum][4];
+        this.weights = new double[camerasNum];
+        this.measurementsTime = new long[camerasNum];
+    }
+
+    /**
+     * Stores the result of the frame without the marker
+     * @param cameraIndex index of the camera (0 - primary camera)
+     */
+    public void proceedPosition(int cameraIndex) {
+        proceedPosition(cameraIndex, false, 0, 0, 0, 0, 0, System.nanoTime());
+    }
+
+    /**
+     * Stores the measurement of the camera. If it comes from the primary camera,
+     * fuses fresh measurements of all cameras and transfers the result to the PositionHandler class
+     * @param cameraIndex index of the camera (0 - primary camera)
+     * @param markerFound is marker found on this frame
+     * @param x estimated X position of the marker
+     * @param y estimated Y position of the marker
+     * @param z estimated Z position of the marker
+     * @param yaw estimated yaw angle of the marker (in degrees)
+     * @param markerPixels size of the marker on the frame (in pixels)
+     * @param frameTime System.nanoTime() of the frame capture
+     */
+    public void proceedPosition(int cameraIndex, boolean markerFound,
+                                double x, double y, double z, double yaw, double markerPixels, long frameTime) {
+        // Only one camera. Nothing to fuse
+        if (markersFound.length == 1) {
+            if (markerFound)
+                positionHandler.proceedPosition(true, x, y, z, yaw, frameTime);
+            else
+                positionHandler.proceedPosition(false, 0, 0, 0, 0, frameTime);
+            return;
+        }
+
+        double fusedX = 0, fusedY = 0, fusedZ = 0, yawSin = 0, yawCos = 0, weightSum = 0, timeOffset = 0;
+        synchronized (this) {
+            markersFound[cameraIndex] = markerFound;
+            poses[cameraIndex][0] = x;
+            poses[cameraIndex][1] = y;
+            poses[cameraIndex][2] = z;
+            poses[cameraIndex][3] = yaw;
+            weights[cameraIndex] = markerPixels * markerPixels;
+            measurementsTime[cameraIndex] = frameTime;
+
+            // Secondary cameras only store their measurements
+            if (cameraIndex != 0)
+                return;
+
+            // Weighted average of the fresh measurements (bigger marker on the frame - more accurate pose)
+            for (int i = 0; i < markersFound.length; i++) {
+                if (markersFound[i]
+                        && frameTime - measurementsTime[i] <= settingsContainer.frameTimeout * 1000000L) {
+                    fusedX += poses[i][0] * weights[i];
+                    fusedY += poses[i][1] * weights[i];
+                    fusedZ += poses[i][2] * weights[i];
+                    yawSin += Math.sin(Math.toRadians(poses[i][3])) * weights[i];
+                    yawCos += Math.cos(Math.toRadians(poses[i][3])) * weights[i];
+                    timeOffset += (measurementsTime[i] - frameTime) * weights[i];
+                    weightSum += weights[i];
+                }
+            }
+        }
+
+        // Transfer fused position (at the weighted time of the measurements) to the PositionHandler class
+        if (weightSum > 0)
+            positionHandler.proceedPosition(true, fusedX / weightSum, fusedY / weightSum, fusedZ / weightSum,
+                    Math.toDegrees(Math.atan2(yawSin, yawCos)), frameTime + (long) (timeOffset / weightSum));
+        else
+            positionHandler.proceedPosition(false, 0, 0, 0, 0, frameTime);
+    }
+}
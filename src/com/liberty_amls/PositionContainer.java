@@ -33,6 +33,7 @@ import org.opencv.core.Point;
 
 public class PositionContainer {
     public double x, y, z, yaw;
+    public double predictionHorizon;
     public double setpointX, setpointY, setpointAbsX, setpointAbsY, setpointZ, setpointYaw;
     public double entryZ;
     public Point frameSetpoint;
@@ -49,6 +50,7 @@ public class PositionContainer {
     public final static int STATUS_PREV = 4;
     public final static int STATUS_LOST = 5;
     public final static int STATUS_DONE = 6;
+    public final static int STATUSES_NUM = 7;
 
     /**
      * This class stores current position, corrections and state of the drone
@@ -59,6 +61,7 @@ public class PositionContainer {
         y = 0;
         z = 0;
         yaw = 0;
+        predictionHorizon = 0;
         setpointX = 0;
         setpointY = 0;
         setpointAbsX = 0;
@@ -95,6 +98,14 @@ public class PositionContainer {
      * @return current status as String
      */
     public String getStatusString() {
+        return getStatusString(status);
+    }
+
+    /**
+     * @param status one of STATUS_... constants
+     * @return name of the status
+     */
+    public static String getStatusString(int status) {
         switch (status) {
             case STATUS_WAYP:
                 return "WAYP";
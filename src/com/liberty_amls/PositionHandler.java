@@ -30,36 +30,54 @@
 package com.liberty_amls;
 
 import com.google.gson.JsonObject;
-import com.stormbots.MiniPID;
 import org.apache.log4j.Logger;
 
-public class PositionHandler {
+public class PositionHandler implements LinkWatchdog.LinkListener {
     private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
 
     private final SettingsContainer settingsContainer;
     private final LinkSender linkSender;
-    private final MiniPID miniPIDX, miniPIDY, miniPIDZ, miniPIDYaw;
+    private final LinkScheduler linkScheduler;
+    private final MultiAxisPID pid;
     private final PositionContainer positionContainer;
     private final PlatformContainer platformContainer;
     private final TelemetryContainer telemetryContainer;
     private final BlackboxHandler blackboxHandler;
     private final WaypointsContainer waypointsContainer;
+    private final PoseEstimator poseEstimator;
+    private final double[] measuredPose = new double[4];
+
+    // PID inputs and outputs (indexes are PoseEstimator axes)
+    private final double[] pidSetpoints = new double[4];
+    private final double[] pidMeasurements = new double[4];
+    private final double[] pidOutputs = new double[4];
+
+    // Latest frame (written by the OpenCV thread, consumed by the control loop)
+    private long measuredPoseTime, lastFrameTime, lostFrameTime;
+    private boolean newMeasurement = false, frameStalled = false;
+    private int lostFrames = 0;
+
+    // Landing sequence
+    private final LandingStateMachine landingStateMachine;
+    private double cycleDt;
+    private boolean motorsTurnedOff = false;
 
     private int waypointSendIndex = 0;
-    private int lostCounter = 0;
     private boolean libertyWayEnabled = false;
     private final GPS emptyGPS;
     private String preFlightErrorMessage = "";
     private boolean takeoffDetectedLast = false;
 
     /**
-     * This class takes the absolute coordinates of the marker as input,
-     * passes them through the PID controllers,
-     * generates Direct Control values and sends them to the drone via the Serial port or UDP
+     * This class takes the absolute coordinates of the marker as input (OpenCV threads),
+     * passes the estimated position through the PID controllers (ControlLoop thread),
+     * generates Direct Control values and hands them to the LinkScheduler that sends them to the drone
      *
-     * @param linkSender LinkSender class object to send data
+     * @param linkSender LinkSender class object to send commands (takeoff, land, etc.)
+     * @param linkScheduler LinkScheduler class object to send DDC and waypoints at the fixed rate
      */
     public PositionHandler(LinkSender linkSender,
+                           LinkScheduler linkScheduler,
                            PositionContainer positionContainer,
                            PlatformContainer platformContainer,
                            TelemetryContainer telemetryContainer,
@@ -67,46 +85,84 @@ public class PositionHandler {
                            SettingsContainer settingsContainer,
                            WaypointsContainer waypointsContainer) {
         this.linkSender = linkSender;
-        this.miniPIDX = new MiniPID(0, 0, 0, 0);
-        this.miniPIDY = new MiniPID(0, 0, 0, 0);
-        this.miniPIDZ = new MiniPID(0, 0, 0, 0);
-        this.miniPIDYaw = new MiniPID(0, 0, 0, 0);
+        this.linkScheduler = linkScheduler;
+        this.pid = new MultiAxisPID(4);
         this.positionContainer = positionContainer;
         this.platformContainer = platformContainer;
         this.telemetryContainer = telemetryContainer;
         this.blackboxHandler = blackboxHandler;
         this.settingsContainer = settingsContainer;
         this.waypointsContainer = waypointsContainer;
+        this.poseEstimator = new PoseEstimator(settingsContainer);
+        this.landingStateMachine = new LandingStateMachine(PositionContainer.STATUSES_NUM,
+                PositionContainer.STATUS_IDLE);
+        setupLandingStateMachine();
 
         this.emptyGPS = new GPS(0, 0);
 
         positionContainer.setSetpoints(settingsContainer.setpointX, settingsContainer.setpointY, 0,
                 settingsContainer.setpointYaw);
-        miniPIDX.setSetpoint(positionContainer.setpointX);
-        miniPIDY.setSetpoint(positionContainer.setpointY);
-        miniPIDZ.setSetpoint(positionContainer.setpointZ);
-        miniPIDYaw.setSetpoint(positionContainer.setpointYaw);
     }
 
     /**
-     * Calls if there is no marker in sight (newMarkerPosition = false)
-     *
-     * @param newMarkerPosition must be false
+     * Calls by LinkWatchdog right after the deadline of the link has expired (lost flag is already set)
+     * @param linkName name of the lost link
      */
-    public void proceedPosition(boolean newMarkerPosition) {
-        proceedPosition(newMarkerPosition, 0, 0, 0, 0);
+    @Override
+    public synchronized void onLinkLost(String linkName) {
+        if (libertyWayEnabled) {
+            logger.warn(linkName + " link lost in " + positionContainer.getStatusString() + " status");
+            blackboxHandler.requestNewEntry();
+        }
     }
 
     /**
-     * Calls by OpenCV handler
+     * Calls by the link decoding thread on the first packet after the loss (lost flag is already cleared)
+     * @param linkName name of the restored link
+     */
+    @Override
+    public synchronized void onLinkRestored(String linkName) {
+        if (libertyWayEnabled) {
+            logger.info(linkName + " link restored in " + positionContainer.getStatusString() + " status");
+            blackboxHandler.requestNewEntry();
+        }
+    }
+
+    /**
+     * Calls by OpenCV handler (through PoseFuser) for every frame. Feeds the pose estimator
+     * and counts frames without the marker. The result is consumed by the next control cycle
      *
      * @param newMarkerPosition set it to true if marker is in sight
      * @param x                 estimated marker X position (if newMarkerPosition)
      * @param y                 estimated marker Y position (if newMarkerPosition)
      * @param z                 estimated marker Z position (if newMarkerPosition)
      * @param yaw               estimated marker Yaw angle (if newMarkerPosition)
+     * @param measurementTime   System.nanoTime() of the frame capture
+     */
+    public synchronized void proceedPosition(boolean newMarkerPosition, double x, double y, double z, double yaw,
+                                             long measurementTime) {
+        if (newMarkerPosition && z <= settingsContainer.maxMarkerHeight) {
+            // Correct the estimator by the new pose
+            setMeasuredPose(x, y, z, yaw);
+            poseEstimator.update(measuredPose, measurementTime, getMeasurementNoiseScale());
+            measuredPoseTime = measurementTime;
+            newMeasurement = true;
+            lostFrames = 0;
+        } else {
+            // Move the estimator to the frame time without the marker (the pose coasts with the estimated velocity)
+            poseEstimator.predict(measurementTime);
+            lostFrames++;
+        }
+        lastFrameTime = measurementTime;
+        lostFrameTime = measurementTime;
+    }
+
+    /**
+     * Runs the state machine and optical stabilization. Calls by the ControlLoop at the fixed rate (control_rate)
+     *
+     * @param dt time step of the cycle in seconds (nominal control loop period)
      */
-    public void proceedPosition(boolean newMarkerPosition, double x, double y, double z, double yaw) {
+    public synchronized void controlCycle(double dt) {
         // Set starting DDC values (1500 = no correction)
         positionContainer.ddcX = 1500;
         positionContainer.ddcY = 1500;
@@ -121,226 +177,244 @@ public class PositionHandler {
 
         // TODO: In-flight error checking
 
-        switch (positionContainer.status) {
-            case PositionContainer.STATUS_WAYP:
-                // ---------------------------------------------
-                // WAYP - Broadcasting waypoints array
-                // ---------------------------------------------
-                // Open alignment system
-                platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
-
-                // Send waypoints array
-                sendWaypoints();
-
-                // Finish the flight if the drone landed on its own
-                if (!telemetryContainer.takeoffDetected && takeoffDetectedLast) {
-                    positionContainer.status = PositionContainer.STATUS_DONE;
-                }
-                // Normal mode
-                else {
-                    // Send takeoff command if end of array is reached
-                    if (waypointSendIndex >= WaypointsContainer.WAYPOINTS_NUM) {
-                        if (!telemetryContainer.telemetryLost) {
-                            if (!telemetryContainer.takeoffDetected)
-                                linkSender.sendTakeoff();
-                        } else
-                            linkSender.sendTakeoff();
-                    }
-
-                    // Reset optical PID controllers
-                    resetPIDs();
-
-                    // Look for marker only if drone telemetry is lost or DDC is allowed on current waypoint
-                    if (telemetryContainer.telemetryLost
-                            || (telemetryContainer.waypointIndex < waypointsContainer.getWaypointsSize()
-                            && waypointsContainer.getWaypointsCommand()
-                            .get(telemetryContainer.waypointIndex) < WaypointsContainer.WAYP_CMD_BITS_FLY)) {
-
-                        // If the marker was found
-                        if (newMarkerPosition && z <= settingsContainer.maxMarkerHeight) {
-                            // Reset filtered values
-                            this.positionContainer.x = x;
-                            this.positionContainer.y = y;
-                            this.positionContainer.z = z;
-                            this.positionContainer.yaw = yaw;
-
-                            // Remember current position as setpoint
-                            positionContainer.setpointX = positionContainer.x;
-                            positionContainer.setpointY = positionContainer.y;
-                            positionContainer.setpointZ = positionContainer.z;
-                            positionContainer.entryZ = positionContainer.z;
-                            miniPIDX.setSetpoint(positionContainer.setpointX);
-                            miniPIDY.setSetpoint(positionContainer.setpointY);
-                            miniPIDZ.setSetpoint(positionContainer.setpointZ);
-
-                            // Print log message
-                            logger.warn("Marker in sight! Setpoints fixed at X=" +
-                                    (int) positionContainer.setpointX +
-                                    " Y=" + (int) positionContainer.setpointY +
-                                    " Z=" + (int) positionContainer.setpointZ);
-                            logger.warn("Start smooth alignment of setpoints");
-
-                            // Switch to the STAB mode (optical stabilization)
-                            positionContainer.status = PositionContainer.STATUS_STAB;
-                        }
-                    }
-                }
-                break;
-
-            case PositionContainer.STATUS_STAB:
-                // ---------------------------------------------
-                // STAB - Optical stabilization
-                // ---------------------------------------------
-                // Open alignment system
-                platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
-
-                // Reset lost frames counter
-                lostCounter = 0;
-
-                // Proceed optical stabilization
-                opticalStabilization(x, y, z, yaw);
-
-                // Switch to PREV mode if marker was lost
-                if (!newMarkerPosition || z > settingsContainer.maxMarkerHeight) {
-                    logger.warn("The marker is lost! The previous position will be used for next " +
-                            settingsContainer.allowedLostFrames + " frames");
-                    lostCounter++;
-                    positionContainer.status = PositionContainer.STATUS_PREV;
-                } else {
-                    // Switch to LAND mode if landing conditions are met
-                    if (settingsContainer.opticalLandingAllowed
-                            && Math.abs(positionContainer.x - positionContainer.setpointAbsX) <
-                            settingsContainer.allowedLandingRangeXY
-                            && Math.abs(positionContainer.y - positionContainer.setpointAbsY) <
-                            settingsContainer.allowedLandingRangeXY
-                            && Math.abs(positionContainer.yaw - positionContainer.setpointYaw) <
-                            settingsContainer.allowedLandingRangeYaw)
-                        positionContainer.status = PositionContainer.STATUS_LAND;
-                }
-
-                // Log new data
-                blackboxHandler.requestNewEntry();
-                break;
-            case PositionContainer.STATUS_LAND:
-                // ---------------------------------------------
-                // LAND - Optical landing
-                // ---------------------------------------------
-                // Open alignment system
-                platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
-
-                // Switch to PREV mode if marker was lost
-                if (!newMarkerPosition || z > settingsContainer.maxMarkerHeight) {
-                    logger.warn("The marker is lost! The previous position will be used for next " +
-                            settingsContainer.allowedLostFrames + " frames");
-                    lostCounter++;
-                    positionContainer.status = PositionContainer.STATUS_PREV;
-                } else {
-                    if (positionContainer.z <= settingsContainer.motorsTurnOffHeight) {
-                        // Landing done
-                        logger.warn("Landed successfully! Turning off the motors");
-                        linkSender.sendMotorsOFF();
-                        if ( !telemetryContainer.telemetryLost) {
-                            if (!telemetryContainer.takeoffDetected)
-                                // Switch to DONE state if the drone has landed
-                                positionContainer.status = PositionContainer.STATUS_DONE;
-                        } else
-                            // TODO: detect drone landing using platform
-                            positionContainer.status = PositionContainer.STATUS_DONE;
-                    } else {
-                        // Landing in process
-                        // Check landing conditions
-                        if (Math.abs(positionContainer.x - positionContainer.setpointAbsX) <
-                                settingsContainer.allowedLandingRangeXY
-                                && Math.abs(positionContainer.y - positionContainer.setpointAbsY) <
-                                settingsContainer.allowedLandingRangeXY
-                                && Math.abs(positionContainer.yaw - positionContainer.setpointYaw) <
-                                settingsContainer.allowedLandingRangeYaw) {
-                            // Slowly lowering the altitude
-                            if (positionContainer.setpointZ > 1)
-                                positionContainer.setpointZ -= settingsContainer.landingDecrement;
-                            miniPIDZ.setSetpoint(positionContainer.setpointZ);
-                        } else
-                            // If landing conditions are not met, return to STAB mode
-                            positionContainer.status = PositionContainer.STATUS_STAB;
-
-                        // Calculate and send direct controls
-                        opticalStabilization(x, y, z, yaw);
-                    }
-                }
-
-                // Log new data
-                blackboxHandler.requestNewEntry();
-                break;
-            case PositionContainer.STATUS_PREV:
-                // ---------------------------------------------
-                // PREV - Optical stabilization with lost marker
-                // ---------------------------------------------
-                // Open alignment system
-                platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
-
-                // Proceed optical stabilization
-                opticalStabilization(x, y, z, yaw);
-
-                // Switch to the STAB mode (optical stabilization) if the marker has appeared again
-                if (newMarkerPosition && z <= settingsContainer.maxMarkerHeight) {
-                    logger.warn("The marker is back in sight!");
-                    positionContainer.status = PositionContainer.STATUS_STAB;
-                } else {
-                    // Increment lost frames counter
-                    lostCounter++;
-                    if (lostCounter > settingsContainer.allowedLostFrames) {
-                        logger.error("The marker is completely lost! Optical stabilization will be terminated!");
-
-                        // Switch to the WAYP mode if marker is completely lost
-                        positionContainer.status = PositionContainer.STATUS_WAYP;
-                    }
-                }
-
-                // Log new data
-                blackboxHandler.requestNewEntry();
-                break;
-            case PositionContainer.STATUS_DONE:
-                // ---------------------------------------------
-                // DONE - Landing finished
-                // ---------------------------------------------
-                // Close alignment system
-                platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_CLOSE;
+        // No new frames (capture thread stalled). Count one lost frame per frame_timeout and don't send the DDC
+        long time = System.nanoTime();
+        long frameTimeout = settingsContainer.frameTimeout * 1000000L;
+        frameStalled = time - lastFrameTime > frameTimeout;
+        if (frameStalled && time - lostFrameTime > frameTimeout) {
+            lostFrames++;
+            lostFrameTime = time;
+        }
 
-                // Print message
-                logger.info("DONE! Liberty-Way sequence finished");
+        // Run the landing sequence
+        cycleDt = dt;
+        int previousStatus = landingStateMachine.getState();
+        positionContainer.status = landingStateMachine.update();
 
-                // Disable blackbox
-                blackboxHandler.setBlackboxEnabled(false);
+        // Log new data
+        if (previousStatus != PositionContainer.STATUS_IDLE && previousStatus != PositionContainer.STATUS_WAYP)
+            blackboxHandler.requestNewEntry();
 
-                // Disable Liberty-Way
-                this.libertyWayEnabled = false;
+        // Broadcast waypoints in the link slots if there is no optical stabilization
+        if (positionContainer.status == PositionContainer.STATUS_WAYP
+                || positionContainer.status == PositionContainer.STATUS_IDLE)
+            linkScheduler.setMode(LinkScheduler.MODE_WAYPOINTS);
 
-                // Switch to the IDLE mode
-                positionContainer.status = PositionContainer.STATUS_IDLE;
+        // Store takeoff detected flag for the next loop
+        takeoffDetectedLast = telemetryContainer.takeoffDetected;
 
-                // Log new data
-                blackboxHandler.requestNewEntry();
-                break;
-            default:
-                // ---------------------------------------------
-                // IDLE - Waiting for execution (pre-start)
-                // ---------------------------------------------
-                // Close alignment system
-                platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_CLOSE;
-
-                // Send waypoints array
-                sendWaypoints();
-                break;
+        // The measurement is consumed
+        newMeasurement = false;
+    }
+
+    /**
+     * Fills the transition table of the landing sequence. Transitions of each state are checked in this order
+     */
+    private void setupLandingStateMachine() {
+        LandingStateMachine machine = landingStateMachine;
+
+        // WAYP - Broadcasting waypoints array
+        machine.setUpdateAction(PositionContainer.STATUS_WAYP, this::updateWaypoints);
+        machine.addTransition(PositionContainer.STATUS_WAYP, PositionContainer.STATUS_DONE,
+                this::isLandedOnOwn, null);
+        machine.addTransition(PositionContainer.STATUS_WAYP, PositionContainer.STATUS_STAB,
+                () -> newMeasurement && isMarkerSearchAllowed(), this::fixSetpoints);
+
+        // STAB - Optical stabilization
+        machine.setUpdateAction(PositionContainer.STATUS_STAB, this::updateStabilization);
+        machine.addTransition(PositionContainer.STATUS_STAB, PositionContainer.STATUS_PREV,
+                () -> lostFrames > 0, this::logMarkerLost);
+        machine.addTransition(PositionContainer.STATUS_STAB, PositionContainer.STATUS_LAND,
+                () -> settingsContainer.opticalLandingAllowed && isInLandingRange(), null);
+
+        // LAND - Optical landing
+        machine.setUpdateAction(PositionContainer.STATUS_LAND, this::updateLanding);
+        machine.addTransition(PositionContainer.STATUS_LAND, PositionContainer.STATUS_PREV,
+                () -> lostFrames > 0, this::logMarkerLost);
+        // TODO: detect drone landing using platform (if telemetry is lost)
+        machine.addTransition(PositionContainer.STATUS_LAND, PositionContainer.STATUS_DONE,
+                () -> motorsTurnedOff && (telemetryContainer.telemetryLost || !telemetryContainer.takeoffDetected),
+                null);
+        machine.addTransition(PositionContainer.STATUS_LAND, PositionContainer.STATUS_STAB,
+                () -> !motorsTurnedOff && !isInLandingRange(), null);
+
+        // PREV - Optical stabilization with lost marker
+        machine.setUpdateAction(PositionContainer.STATUS_PREV, this::updateStabilization);
+        machine.addTransition(PositionContainer.STATUS_PREV, PositionContainer.STATUS_STAB,
+                () -> lostFrames == 0, () -> logger.warn("The marker is back in sight!"));
+        machine.addTransition(PositionContainer.STATUS_PREV, PositionContainer.STATUS_WAYP,
+                () -> lostFrames > settingsContainer.allowedLostFrames,
+                () -> logger.error("The marker is completely lost! Optical stabilization will be terminated!"));
+
+        // DONE - Landing finished
+        machine.setUpdateAction(PositionContainer.STATUS_DONE, this::finishSequence);
+        machine.addTransition(PositionContainer.STATUS_DONE, PositionContainer.STATUS_IDLE, () -> true, null);
+
+        // IDLE - Waiting for execution (pre-start)
+        machine.setUpdateAction(PositionContainer.STATUS_IDLE,
+                () -> platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_CLOSE);
+    }
+
+    /**
+     * WAYP update. Sends takeoff command at the end of the waypoints array and keeps PID controllers reset
+     */
+    private void updateWaypoints() {
+        // Open alignment system
+        platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
+
+        if (!isLandedOnOwn()) {
+            // Send takeoff command if end of array is reached
+            if (waypointSendIndex >= WaypointsContainer.WAYPOINTS_NUM) {
+                if (!telemetryContainer.telemetryLost) {
+                    if (!telemetryContainer.takeoffDetected)
+                        linkSender.sendTakeoff();
+                } else
+                    linkSender.sendTakeoff();
+            }
+
+            // Reset optical PID controllers
+            resetPIDs();
         }
+    }
 
-        // Store takeoff detected flag for the next loop
-        takeoffDetectedLast = telemetryContainer.takeoffDetected;
+    /**
+     * WAYP -> STAB action. Starts the estimator from the measured pose and fixes setpoints at it
+     */
+    private void fixSetpoints() {
+        // Reset filtered values and start the estimator from the measured pose
+        this.positionContainer.x = measuredPose[PoseEstimator.AXIS_X];
+        this.positionContainer.y = measuredPose[PoseEstimator.AXIS_Y];
+        this.positionContainer.z = measuredPose[PoseEstimator.AXIS_Z];
+        this.positionContainer.yaw = measuredPose[PoseEstimator.AXIS_YAW];
+        poseEstimator.reset(measuredPose, measuredPoseTime);
+
+        // Remember current position as setpoint
+        positionContainer.setpointX = positionContainer.x;
+        positionContainer.setpointY = positionContainer.y;
+        positionContainer.setpointZ = positionContainer.z;
+        positionContainer.entryZ = positionContainer.z;
+
+        // Print log message
+        logger.warn("Marker in sight! Setpoints fixed at X=" +
+                (int) positionContainer.setpointX +
+                " Y=" + (int) positionContainer.setpointY +
+                " Z=" + (int) positionContainer.setpointZ);
+        logger.warn("Start smooth alignment of setpoints");
+    }
+
+    /**
+     * STAB and PREV update. Optical stabilization by the estimated position
+     */
+    private void updateStabilization() {
+        // Open alignment system
+        platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
+
+        // Proceed optical stabilization
+        opticalStabilization(cycleDt);
+    }
+
+    /**
+     * LAND update. Lowers the altitude setpoint while the drone is inside the landing range
+     * and turns off the motors at motors_turn_off_height
+     */
+    private void updateLanding() {
+        // Open alignment system
+        platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_OPEN;
+
+        motorsTurnedOff = false;
+        if (lostFrames > 0)
+            return;
+
+        if (positionContainer.z <= settingsContainer.motorsTurnOffHeight) {
+            // Landing done
+            logger.warn("Landed successfully! Turning off the motors");
+            linkSender.sendMotorsOFF();
+            linkScheduler.setMode(LinkScheduler.MODE_NONE);
+            motorsTurnedOff = true;
+        } else {
+            // Slowly lowering the altitude if landing conditions are met
+            if (isInLandingRange() && positionContainer.setpointZ > 1)
+                positionContainer.setpointZ -= settingsContainer.landingDecrement;
+
+            // Calculate and send direct controls
+            opticalStabilization(cycleDt);
+        }
+    }
+
+    /**
+     * DONE update. Finishes Liberty-Way sequence
+     */
+    private void finishSequence() {
+        // Close alignment system
+        platformContainer.alignmentCommand = PlatformContainer.ALIGNMENT_COMMAND_CLOSE;
+
+        // Print message
+        logger.info("DONE! Liberty-Way sequence finished");
+
+        // Disable blackbox
+        blackboxHandler.setBlackboxEnabled(false);
+
+        // Disable Liberty-Way
+        this.libertyWayEnabled = false;
+    }
+
+    /**
+     * STAB or LAND -> PREV action
+     */
+    private void logMarkerLost() {
+        logger.warn("The marker is lost! The estimated position will be used for next " +
+                settingsContainer.allowedLostFrames + " frames");
     }
 
     /**
-     * Sends the waypoints array to the drone
+     * @return true if the drone landed on its own (takeoff detected flag is cleared)
+     */
+    private boolean isLandedOnOwn() {
+        return !telemetryContainer.takeoffDetected && takeoffDetectedLast;
+    }
+
+    /**
+     * @return true if drone telemetry is lost or DDC is allowed on current waypoint
+     */
+    private boolean isMarkerSearchAllowed() {
+        return telemetryContainer.telemetryLost
+                || (telemetryContainer.waypointIndex < waypointsContainer.getWaypointsSize()
+                && waypointsContainer.getWaypointsCommand()
+                .get(telemetryContainer.waypointIndex) < WaypointsContainer.WAYP_CMD_BITS_FLY);
+    }
+
+    /**
+     * @return true if the estimated position and yaw are inside the allowed landing range
+     */
+    private boolean isInLandingRange() {
+        return Math.abs(positionContainer.x - positionContainer.setpointAbsX) < settingsContainer.allowedLandingRangeXY
+                && Math.abs(positionContainer.y - positionContainer.setpointAbsY) <
+                settingsContainer.allowedLandingRangeXY
+                && Math.abs(positionContainer.yaw - positionContainer.setpointYaw) <
+                settingsContainer.allowedLandingRangeYaw;
+    }
+
+    /**
+     * Changes the status by the external command (Liberty-Way start or stop)
+     *
+     * @param status new status (PositionContainer.STATUS_...)
      */
-    private void sendWaypoints() {
+    private void setStatus(int status) {
+        landingStateMachine.forceState(status);
+        positionContainer.status = status;
+    }
+
+    /**
+     * @return state machine of the landing sequence (time in states and transitions counters)
+     */
+    public LandingStateMachine getLandingStateMachine() {
+        return landingStateMachine;
+    }
+
+    /**
+     * Sends the next waypoint of the array to the drone. Called by the LinkScheduler in the waypoint slots
+     */
+    public synchronized void sendWaypoints() {
         // Send waypoint
         if (waypointSendIndex < WaypointsContainer.WAYPOINTS_NUM) {
             // Send current waypoint
@@ -371,33 +445,48 @@ public class PositionHandler {
     }
 
     /**
-     * Processes the coordinates of the marker, calculates optical stabilization
+     * Takes the estimated pose, calculates optical stabilization
      * and sends Direct Control to the drone
+     *
+     * @param dt time step of the cycle in seconds (nominal control loop period)
      */
-    private void opticalStabilization(double x, double y, double z, double yaw) {
-        // Filter new coordinates
-        this.positionContainer.x = this.positionContainer.x * settingsContainer.inputFilter +
-                x * (1 - settingsContainer.inputFilter);
-        this.positionContainer.y = this.positionContainer.y * settingsContainer.inputFilter +
-                y * (1 - settingsContainer.inputFilter);
-        this.positionContainer.z = this.positionContainer.z * settingsContainer.inputFilter +
-                z * (1 - settingsContainer.inputFilter);
-        this.positionContainer.yaw = this.positionContainer.yaw * settingsContainer.inputFilter +
-                yaw * (1 - settingsContainer.inputFilter);
+    private void opticalStabilization(double dt) {
+        // Don't extrapolate the frozen pose. The link goes quiet and the drone falls back to IDLE after link_ddc_timeout
+        if (frameStalled)
+            return;
+
+        // Estimated pose at the moment when the DDC will reach the flight controller
+        if (poseEstimator.isInitialized()) {
+            long actuationTime = getActuationTime(lastFrameTime);
+            positionContainer.x = poseEstimator.getPosition(PoseEstimator.AXIS_X, actuationTime);
+            positionContainer.y = poseEstimator.getPosition(PoseEstimator.AXIS_Y, actuationTime);
+            positionContainer.z = poseEstimator.getPosition(PoseEstimator.AXIS_Z, actuationTime);
+            positionContainer.yaw = poseEstimator.getPosition(PoseEstimator.AXIS_YAW, actuationTime);
+            positionContainer.predictionHorizon = (actuationTime - lastFrameTime) / 1000000.0;
+        }
 
         // Setpoints alignment
         positionContainer.setpointX = positionContainer.setpointX * settingsContainer.setpointAlignmentFactor
                 + positionContainer.setpointAbsX * (1 - settingsContainer.setpointAlignmentFactor);
         positionContainer.setpointY = positionContainer.setpointY * settingsContainer.setpointAlignmentFactor
                 + positionContainer.setpointAbsY * (1 - settingsContainer.setpointAlignmentFactor);
-        miniPIDX.setSetpoint(positionContainer.setpointX);
-        miniPIDY.setSetpoint(positionContainer.setpointY);
+
+        // Compute PID controllers of all axes
+        pidSetpoints[PoseEstimator.AXIS_X] = positionContainer.setpointX;
+        pidSetpoints[PoseEstimator.AXIS_Y] = positionContainer.setpointY;
+        pidSetpoints[PoseEstimator.AXIS_Z] = positionContainer.setpointZ;
+        pidSetpoints[PoseEstimator.AXIS_YAW] = positionContainer.setpointYaw;
+        pidMeasurements[PoseEstimator.AXIS_X] = positionContainer.x;
+        pidMeasurements[PoseEstimator.AXIS_Y] = positionContainer.y;
+        pidMeasurements[PoseEstimator.AXIS_Z] = positionContainer.z;
+        pidMeasurements[PoseEstimator.AXIS_YAW] = positionContainer.yaw;
+        pid.compute(pidSetpoints, pidMeasurements, dt, pidOutputs);
 
         // Append corrections from PID controllers
-        positionContainer.ddcX += miniPIDX.getOutput(positionContainer.x);
-        positionContainer.ddcY += miniPIDY.getOutput(positionContainer.y);
-        positionContainer.ddcZ += miniPIDZ.getOutput(positionContainer.z);
-        positionContainer.ddcYaw += miniPIDYaw.getOutput(positionContainer.yaw);
+        positionContainer.ddcX += pidOutputs[PoseEstimator.AXIS_X];
+        positionContainer.ddcY += pidOutputs[PoseEstimator.AXIS_Y];
+        positionContainer.ddcZ += pidOutputs[PoseEstimator.AXIS_Z];
+        positionContainer.ddcYaw += pidOutputs[PoseEstimator.AXIS_YAW];
 
         // Calculate roll and pitch corrections
         double yawSin = Math.sin(Math.toRadians(-positionContainer.yaw));
@@ -407,25 +496,62 @@ public class PositionHandler {
         positionContainer.ddcPitch = (int) ((positionContainer.ddcX - 1500) * yawCos
                 - (positionContainer.ddcY - 1500) * yawSin + 1500);
 
-        // Send direct correction to the drone
-        linkSender.sendDDC(positionContainer.ddcRoll, positionContainer.ddcPitch,
+        // Latch direct correction (it will be sent in the next link slots)
+        linkScheduler.setDDC(positionContainer.ddcRoll, positionContainer.ddcPitch,
                 positionContainer.ddcZ, positionContainer.ddcYaw, LinkSender.CMD_BITS_DDC);
     }
 
+    /**
+     * The DDC computed now is latched until the next link slot and then executed by the flight controller
+     * latency_compensation milliseconds later. The pose is extrapolated from the frame capture time to that moment,
+     * so the whole capture + detection + link latency is compensated
+     *
+     * @param measurementTime System.nanoTime() of the frame capture
+     * @return System.nanoTime() of the expected DDC arrival (not later than max_prediction_horizon after the frame)
+     */
+    private long getActuationTime(long measurementTime) {
+        long actuationTime = Math.max(linkScheduler.getNextSlotTime(), System.nanoTime())
+                + settingsContainer.latencyCompensation * 1000000L;
+        return Math.min(actuationTime, measurementTime + settingsContainer.maxPredictionHorizon * 1000000L);
+    }
+
+    /**
+     * Fills measuredPose array for the estimator
+     */
+    private void setMeasuredPose(double x, double y, double z, double yaw) {
+        measuredPose[PoseEstimator.AXIS_X] = x;
+        measuredPose[PoseEstimator.AXIS_Y] = y;
+        measuredPose[PoseEstimator.AXIS_Z] = z;
+        measuredPose[PoseEstimator.AXIS_YAW] = yaw;
+    }
+
+    /**
+     * The marker is viewed at an angle when the drone is tilted, so the pose is less accurate
+     *
+     * @return multiplier of the measurement variance (1 / cos^2 of the tilt, 1 if there is no telemetry)
+     */
+    private double getMeasurementNoiseScale() {
+        if (telemetryContainer.telemetryLost)
+            return 1;
+        double tiltCos = Math.cos(Math.toRadians(telemetryContainer.angleRoll))
+                * Math.cos(Math.toRadians(telemetryContainer.anglePitch));
+        return 1 / Math.max(tiltCos * tiltCos, 0.1);
+    }
+
     /**
      * Enables or disables main Liberty-Way sequence
      *
      * @param libertyWayEnabled set to tru to start auto-takeoff sequence and flight over-waypoints
      * @return true if requested operation was successful
      */
-    public boolean setLibertyWayEnabled(boolean libertyWayEnabled) {
+    public synchronized boolean setLibertyWayEnabled(boolean libertyWayEnabled) {
         if (libertyWayEnabled != this.libertyWayEnabled) {
             // Reset waypoints send index
             waypointSendIndex = 0;
 
             if (this.libertyWayEnabled) {
                 // Reset current status to IDLE
-                positionContainer.status = PositionContainer.STATUS_IDLE;
+                setStatus(PositionContainer.STATUS_IDLE);
 
                 // Disable Liberty-Way
                 if (telemetryContainer.takeoffDetected)
@@ -441,7 +567,7 @@ public class PositionHandler {
                 // Starting Liberty-Way
                 if (preFlightChecks()) {
                     // If checks passed set status to WAYP
-                    positionContainer.status = PositionContainer.STATUS_WAYP;
+                    setStatus(PositionContainer.STATUS_WAYP);
 
                     // Clear takeoffDetectedLast flag
                     takeoffDetectedLast = false;
@@ -552,10 +678,7 @@ public class PositionHandler {
      * Resets PID controllers
      */
     private void resetPIDs() {
-        miniPIDX.reset();
-        miniPIDY.reset();
-        miniPIDZ.reset();
-        miniPIDYaw.reset();
+        pid.reset();
     }
 
     /**
@@ -565,26 +688,35 @@ public class PositionHandler {
         // Load file
         JsonObject pids = FileWorkers.loadJsonObject(settingsContainer.pidFile);
         // X
-        setupPID(pids.get("pid_x").getAsJsonObject(), miniPIDX);
+        setupPID(pids, "pid_x", PoseEstimator.AXIS_X);
         // Y
-        setupPID(pids.get("pid_y").getAsJsonObject(), miniPIDY);
+        setupPID(pids, "pid_y", PoseEstimator.AXIS_Y);
         // Z
-        setupPID(pids.get("pid_z").getAsJsonObject(), miniPIDZ);
+        setupPID(pids, "pid_z", PoseEstimator.AXIS_Z);
         // Yaw
-        setupPID(pids.get("pid_yaw").getAsJsonObject(), miniPIDYaw);
+        setupPID(pids, "pid_yaw", PoseEstimator.AXIS_YAW);
     }
 
     /**
-     * Sets parameters of the current PID
+     * Sets parameters of the PID axis
      *
-     * @param pid     JsonObject PID (from file)
-     * @param miniPID (MiniPID class)
+     * @param pids    JsonObject of the PID file
+     * @param name    name of the axis in the file (pid_x, pid_y, pid_z or pid_yaw)
+     * @param axis    index of the axis (PoseEstimator axis)
      */
-    private void setupPID(JsonObject pid, MiniPID miniPID) {
-        miniPID.setDirection(pid.get("reversed").getAsBoolean());
-        miniPID.setPID(pid.get("P").getAsDouble(), pid.get("I").getAsDouble(),
-                pid.get("D").getAsDouble(), pid.get("F").getAsDouble());
-        miniPID.setOutputRampRate(pid.get("ramp").getAsDouble());
-        miniPID.setOutputLimits(pid.get("limit").getAsDouble());
+    private void setupPID(JsonObject pids, String name, int axis) {
+        JsonObject pidAxis = pids.get(name).getAsJsonObject();
+
+        // d_filter is missing in the old pid.json files. Use the derivative without the filter
+        double dFilter = 0;
+        if (pidAxis.has("d_filter"))
+            dFilter = pidAxis.get("d_filter").getAsDouble();
+        else
+            logger.warn("No d_filter in " + name + ". The derivative will not be filtered");
+
+        pid.setAxis(axis, pidAxis.get("P").getAsDouble(), pidAxis.get("I").getAsDouble(),
+                pidAxis.get("D").getAsDouble(), pidAxis.get("F").getAsDouble(),
+                dFilter, pidAxis.get("ramp").getAsDouble(),
+                pidAxis.get("limit").getAsDouble(), pidAxis.get("reversed").getAsBoolean());
     }
 }
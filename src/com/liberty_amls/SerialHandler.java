@@ -30,23 +30,31 @@
 package com.liberty_amls;
 
 import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortDataListener;
-import com.fazecast.jSerialComm.SerialPortEvent;
 import org.apache.log4j.Logger;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 
-public class SerialHandler {
+/**
+ * This class sends frames from its transmit queue over a Serial Port and receives bytes with the dedicated reader.
+ * The reader does bulk reads from the port into the receive ring buffer (run() must be started in a separate thread),
+ * the telemetry or platform thread takes all received bytes from the ring at once
+ */
+public class SerialHandler implements Runnable {
     private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
     private final String portName;
     private final int baudRate;
     private final int reconnectTime;
+    private final int readTimeout;
     private SerialPort serialPort;
-    private boolean portOpened, portLost = false;
+    private volatile boolean portOpened, portLost = false;
     private long portLostTimer = 0;
-    private byte[] dataBuffer;
-    private final LinkedBlockingQueue<Byte> receiveBuffer = new LinkedBlockingQueue<>(1024);
+    private final TransmitQueue transmitQueue;
+
+    // Dedicated reader
+    private final byte[] readChunk = new byte[1024];
+    private final ByteRingBuffer receiveBuffer = new ByteRingBuffer(4096);
+    private volatile boolean readerRunning;
+    private volatile long overflows = 0;
 
     /**
      * Discovers available Serial ports
@@ -63,14 +71,17 @@ public class SerialHandler {
     }
 
     /**
-     * This class takes an array of bytes (dataBuffer) and sends it over a Serial Port
+     * This class sends frames over a Serial Port from its transmit queue
      * @param portName name of Serial Port (ex. 'COM1' on Windows or '/dev/ttyS0' on Linux)
      * @param portBaudRate baudrate of Serial Port (ex. '57600')
      * @param reconnectTime reconnection time (in case of port lost)
+     * @param readTimeout maximum blocking time of the port reads and readBytes() in milliseconds
      */
-    public SerialHandler(String portName, String portBaudRate, int reconnectTime) {
+    public SerialHandler(String portName, String portBaudRate, int reconnectTime, int readTimeout) {
         this.portName = portName;
         this.reconnectTime = reconnectTime;
+        this.readTimeout = readTimeout;
+        this.transmitQueue = new TransmitQueue("serial port " + portName, this::writeFrames);
         if (portName != null && portName.length() > 0)
             this.baudRate = Integer.parseInt(portBaudRate);
         else
@@ -93,6 +104,9 @@ public class SerialHandler {
                 // Set baudrate
                 serialPort.setBaudRate(baudRate);
 
+                // Reads return as soon as any bytes are received or after the timeout
+                serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, readTimeout, 0);
+
                 // Open it
                 serialPort.openPort();
 
@@ -102,35 +116,6 @@ public class SerialHandler {
                     portLost = false;
                     logger.info("Port " + portName + " opened successfully.");
                 }
-
-                // Connect listener interface
-                serialPort.addDataListener(new SerialPortDataListener() {
-                    @Override
-                    public int getListeningEvents() {
-                        return SerialPort.LISTENING_EVENT_DATA_RECEIVED;
-                    }
-
-                    @Override
-                    public void serialEvent(SerialPortEvent serialPortEvent) {
-                        if (serialPortEvent.getEventType() == SerialPort.LISTENING_EVENT_DATA_RECEIVED) {
-                            // Get received bytes
-                            byte[] receivedData = serialPortEvent.getReceivedData();
-
-                            // Fill receiveBuffer
-                            for (byte receivedByte : receivedData) {
-                                try {
-                                    if (receiveBuffer.remainingCapacity() > 0)
-                                        receiveBuffer.put(receivedByte);
-                                } catch (InterruptedException e) {
-                                    logger.error("Error reading data from serial port", e);
-                                    portLost = true;
-                                    portOpened = false;
-                                    portLostTimer = System.currentTimeMillis();
-                                }
-                            }
-                        }
-                    }
-                });
             } catch (Exception e) {
                 logger.error("Error opening port " + portName + "!", e);
                 // Exit because Serial Port is a vital node when turned on
@@ -147,20 +132,32 @@ public class SerialHandler {
     }
 
     /**
-     * Fills port data buffer
-     * @param dataBuffer bytes buffer to send
+     * Queues the frame for sending. The frame is copied, so the buffer can be reused right after the call
+     * @param frame bytes of the frame
+     * @param priority true to send the frame before all normal frames (FTS, land, etc.)
      */
-    public void setDataBuffer(byte[] dataBuffer) {
-        this.dataBuffer = dataBuffer;
+    public void send(byte[] frame, boolean priority) {
+        if (portOpened || portLost)
+            transmitQueue.offer(frame, frame.length, priority);
     }
 
     /**
-     * Pushes byte arrays to the serial port
+     * @return transmit queue of the port (its writer loop must be started in a separate thread)
      */
-    public void pushData() {
+    public TransmitQueue getTransmitQueue() {
+        return transmitQueue;
+    }
+
+    /**
+     * Writes bytes to the serial port. Called from the transmit queue thread
+     * @param data frames to write
+     * @param length number of bytes
+     * @param destination not used
+     */
+    private void writeFrames(byte[] data, int length, int destination) {
         if (!portLost) {
             try {
-                if (portOpened && dataBuffer != null && dataBuffer.length > 0) {
+                if (portOpened) {
                     // Check if serial port is still opened
                     if (!serialPort.isOpen()) {
                         logger.error("Error pushing data over serial! Port closed!");
@@ -171,7 +168,7 @@ public class SerialHandler {
                     }
 
                     // Write bytes to the port
-                    serialPort.writeBytes(dataBuffer, dataBuffer.length);
+                    serialPort.writeBytes(data, length);
                     // Flush port for safe
                     serialPort.getOutputStream().flush();
                 }
@@ -189,16 +186,66 @@ public class SerialHandler {
     }
 
     /**
-     * Blocks until at least 1 byte of data is received into the buffer
-     * @return byte from serial port
+     * Reader loop. Reads all received bytes from the port (semi-blocking) into the receive ring buffer
      */
-    public byte takeSingleByte() {
-        try {
-            return receiveBuffer.take();
-        } catch (Exception e) {
-            logger.error("Error taking byte from buffer!", e);
+    @Override
+    public void run() {
+        logger.info("Starting " + portName + " reader loop");
+        readerRunning = true;
+        while (readerRunning) {
+            try {
+                SerialPort currentPort = serialPort;
+                if (!portOpened || currentPort == null) {
+                    // Wait for the port to reopen
+                    Thread.sleep(readTimeout);
+                    continue;
+                }
+
+                int bytesNum = currentPort.readBytes(readChunk, readChunk.length);
+                if (bytesNum < 0) {
+                    // Port error. It will be reopened by the writer
+                    Thread.sleep(readTimeout);
+                    continue;
+                }
+
+                // Driver buffer is full. Next received bytes will be lost
+                int deviceBufferSize = currentPort.getDeviceReadBufferSize();
+                if (deviceBufferSize > 0 && currentPort.bytesAvailable() >= deviceBufferSize)
+                    overflows++;
+
+                // Pass bytes to the consumer (bytes that don't fit are dropped and counted by the ring)
+                if (bytesNum > 0)
+                    receiveBuffer.write(readChunk, 0, bytesNum);
+            } catch (InterruptedException e) {
+                readerRunning = false;
+            } catch (Exception e) {
+                logger.error("Error reading " + portName + " port!", e);
+            }
         }
-        return 0;
+    }
+
+    /**
+     * Takes all received bytes (up to the buffer length) from the receive ring buffer.
+     * Blocks until at least 1 byte is received or the read timeout expires
+     * @param buffer array to read received bytes into
+     * @return number of bytes read (0 on timeout)
+     */
+    public int readBytes(byte[] buffer) {
+        return receiveBuffer.read(buffer, 0, buffer.length, readTimeout);
+    }
+
+    /**
+     * @return number of bytes dropped because the consumer didn't take them from the receive ring buffer in time
+     */
+    public long getDroppedBytes() {
+        return receiveBuffer.getOverflowBytes();
+    }
+
+    /**
+     * @return number of reads after which the driver receive buffer was full (bytes were likely lost)
+     */
+    public long getOverflows() {
+        return overflows;
     }
 
     /**
@@ -223,6 +270,8 @@ public class SerialHandler {
      */
     public void closePort() {
         logger.warn("Closing " + portName + " port");
+        transmitQueue.stop();
+        readerRunning = false;
         if (portOpened) {
             portOpened = false;
             try {
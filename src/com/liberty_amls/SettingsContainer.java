@@ -42,6 +42,9 @@ public class SettingsContainer {
     public String pidFile;
     public String cameraMatrixFile;
     public String cameraDistortionsFile;
+    public ArrayList<String> extraCameraMatrixFiles;
+    public ArrayList<String> extraCameraDistortionsFiles;
+    public ArrayList<double[]> extraCameraExtrinsics;
     public String webResourcesFolder;
     public String webTemplatesFolder;
     public String blackboxFolder;
@@ -56,17 +59,45 @@ public class SettingsContainer {
     public boolean videoStreamEnabledByDefault;
     public boolean blackboxEnabled;
     public int serialReconnectTime;
-    public int udpTimeout;
+    public int serialReadTimeout;
+    public boolean udpMultiplexed;
+    public double linkRate;
+    public int linkDDCTimeout;
+    public double controlRate;
     public int telemetryLostTime;
     public int platformLostTime;
     public int platformLightEnableThreshold;
     public int platformLightDisableThreshold;
     public int platformLoopTimer;
     public int fpsMeasurePeriod;
+    public int frameTimeout;
+    public boolean replayRealtime;
+    public double replayFPS;
+    public int syntheticFrames;
+    public double[] syntheticHeightRange;
+    public double syntheticOffset;
+    public double syntheticBlur;
+    public double syntheticNoise;
+    public double[] syntheticIlluminationRange;
     public int adaptiveThreshConstant;
+    public double detectorTargetTime;
+    public int detectorTuningPeriod;
     public short arucoDictionary;
     public ArrayList<Integer> allowedIDs;
+    public ArrayList<Integer> boardMarkerIDs;
+    public ArrayList<double[]> boardMarkerPositions;
+    public boolean roiTrackingEnabled;
+    public double roiPadding;
+    public int roiMaxMisses;
+    public ArrayList<Double> pyramidScales;
+    public int pyramidFullScanPeriod;
     public double inputFilter;
+    public double kalmanPositionNoise;
+    public double kalmanYawNoise;
+    public double kalmanAccelerationNoise;
+    public double kalmanYawAccelerationNoise;
+    public int latencyCompensation;
+    public int maxPredictionHorizon;
     public double setpointAlignmentFactor;
     public int allowedLostFrames;
     public double landingDecrement;
@@ -30,6 +30,7 @@
 package com.liberty_amls;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.log4j.Logger;
 
@@ -94,6 +95,36 @@ public class SettingsHandler {
             if (!new File(settingsContainer.cameraDistortionsFile).exists())
                 exitWithError("Camera distortions file doesn't exists");
 
+            // Calibration files of the extra platform cameras
+            settingsContainer.extraCameraMatrixFiles = new ArrayList<>();
+            for (JsonElement jsonFile : jsonSettings.get("extra_camera_matrix_files").getAsJsonArray()) {
+                settingsContainer.extraCameraMatrixFiles.add(jsonFile.getAsString());
+                if (!new File(jsonFile.getAsString()).exists())
+                    exitWithError("Camera matrix file " + jsonFile.getAsString() + " doesn't exists");
+            }
+            settingsContainer.extraCameraDistortionsFiles = new ArrayList<>();
+            for (JsonElement jsonFile : jsonSettings.get("extra_camera_distortions_files").getAsJsonArray()) {
+                settingsContainer.extraCameraDistortionsFiles.add(jsonFile.getAsString());
+                if (!new File(jsonFile.getAsString()).exists())
+                    exitWithError("Camera distortions file " + jsonFile.getAsString() + " doesn't exists");
+            }
+            if (settingsContainer.extraCameraMatrixFiles.size() != settingsContainer.extraCameraDistortionsFiles.size())
+                exitWithError("Number of extra camera matrix and distortions files must be the same");
+
+            // Positions and rotations of the extra platform cameras relative to the primary camera
+            settingsContainer.extraCameraExtrinsics = new ArrayList<>();
+            for (JsonElement jsonExtrinsic : jsonSettings.get("extra_camera_extrinsics").getAsJsonArray()) {
+                JsonArray jsonValues = jsonExtrinsic.getAsJsonArray();
+                if (jsonValues.size() != 6)
+                    exitWithError("Camera extrinsic must be [x, y, z, rotation x, rotation y, rotation z]");
+                double[] extrinsic = new double[6];
+                for (int i = 0; i < 6; i++)
+                    extrinsic[i] = jsonValues.get(i).getAsDouble();
+                settingsContainer.extraCameraExtrinsics.add(extrinsic);
+            }
+            if (settingsContainer.extraCameraExtrinsics.size() != settingsContainer.extraCameraMatrixFiles.size())
+                exitWithError("Number of extra camera extrinsics and matrix files must be the same");
+
             // Web resources folder
             settingsContainer.webResourcesFolder = jsonSettings.get("web_resources_folder").getAsString();
             if (!new File(settingsContainer.webResourcesFolder).exists())
@@ -147,8 +178,24 @@ public class SettingsHandler {
             // Serial reconnect time
             settingsContainer.serialReconnectTime = jsonSettings.get("serial_reconnect_time").getAsInt();
 
-            // UDP port timeout
-            settingsContainer.udpTimeout = jsonSettings.get("udp_timeout").getAsInt();
+            // Serial port read timeout
+            settingsContainer.serialReadTimeout = jsonSettings.get("serial_read_timeout").getAsInt();
+            if (settingsContainer.serialReadTimeout <= 0)
+                exitWithError("Invalid serial read timeout");
+
+            // One UDP socket for the link and the platform
+            settingsContainer.udpMultiplexed = jsonSettings.get("udp_multiplexed").getAsBoolean();
+
+            // Link packets rate and DDC command timeout
+            settingsContainer.linkRate = jsonSettings.get("link_rate").getAsDouble();
+            settingsContainer.linkDDCTimeout = jsonSettings.get("link_ddc_timeout").getAsInt();
+            if (settingsContainer.linkRate <= 0 || settingsContainer.linkDDCTimeout <= 0)
+                exitWithError("Invalid link rate or DDC timeout");
+
+            // Control loop rate
+            settingsContainer.controlRate = jsonSettings.get("control_rate").getAsDouble();
+            if (settingsContainer.controlRate <= 0)
+                exitWithError("Invalid control rate");
 
             // Telemetry lost time
             settingsContainer.telemetryLostTime = jsonSettings.get("telemetry_lost_time").getAsInt();
@@ -170,9 +217,47 @@ public class SettingsHandler {
             // FPS measure period
             settingsContainer.fpsMeasurePeriod = jsonSettings.get("fps_measure_period").getAsInt();
 
+            // Maximum time to wait for a new frame from the capture thread
+            settingsContainer.frameTimeout = jsonSettings.get("frame_timeout").getAsInt();
+            if (settingsContainer.frameTimeout <= 0)
+                exitWithError("Invalid frame timeout");
+
+            // Pacing of the recorded frame sources
+            settingsContainer.replayRealtime = jsonSettings.get("replay_realtime").getAsBoolean();
+            settingsContainer.replayFPS = jsonSettings.get("replay_fps").getAsDouble();
+            if (settingsContainer.replayFPS <= 0)
+                exitWithError("Invalid replay FPS");
+
+            // Synthetic marker scene
+            settingsContainer.syntheticFrames = jsonSettings.get("synthetic_frames").getAsInt();
+            if (settingsContainer.syntheticFrames <= 0)
+                exitWithError("Invalid number of synthetic frames");
+            JsonArray jsonHeightRange = jsonSettings.get("synthetic_height_range").getAsJsonArray();
+            settingsContainer.syntheticHeightRange = new double[] {
+                    jsonHeightRange.get(0).getAsDouble(), jsonHeightRange.get(1).getAsDouble() };
+            if (settingsContainer.syntheticHeightRange[0] <= 0 || settingsContainer.syntheticHeightRange[1] <= 0)
+                exitWithError("Invalid synthetic height range");
+            settingsContainer.syntheticOffset = jsonSettings.get("synthetic_offset").getAsDouble();
+            settingsContainer.syntheticBlur = jsonSettings.get("synthetic_blur").getAsDouble();
+            settingsContainer.syntheticNoise = jsonSettings.get("synthetic_noise").getAsDouble();
+            if (settingsContainer.syntheticBlur < 0 || settingsContainer.syntheticNoise < 0)
+                exitWithError("Invalid synthetic blur or noise");
+            JsonArray jsonIlluminationRange = jsonSettings.get("synthetic_illumination_range").getAsJsonArray();
+            settingsContainer.syntheticIlluminationRange = new double[] {
+                    jsonIlluminationRange.get(0).getAsDouble(), jsonIlluminationRange.get(1).getAsDouble() };
+            if (settingsContainer.syntheticIlluminationRange[0] <= 0
+                    || settingsContainer.syntheticIlluminationRange[1] < settingsContainer.syntheticIlluminationRange[0])
+                exitWithError("Invalid synthetic illumination range");
+
             // Adaptive threshold constant
             settingsContainer.adaptiveThreshConstant = jsonSettings.get("adaptive_thresh_constant").getAsInt();
 
+            // Adaptive detector parameters
+            settingsContainer.detectorTargetTime = jsonSettings.get("detector_target_time").getAsDouble();
+            settingsContainer.detectorTuningPeriod = jsonSettings.get("detector_tuning_period").getAsInt();
+            if (settingsContainer.detectorTargetTime < 0 || settingsContainer.detectorTuningPeriod <= 0)
+                exitWithError("Invalid detector target time or tuning period");
+
             // Aruco dictionary
             settingsContainer.arucoDictionary = jsonSettings.get("aruco_dictionary").getAsShort();
             if (settingsContainer.arucoDictionary < 0)
@@ -188,11 +273,71 @@ public class SettingsHandler {
                 settingsContainer.allowedIDs.add(jsonAllowedIDs.get(i).getAsInt());
             }
 
+            // Board of markers (ID, size and center position of each marker)
+            settingsContainer.boardMarkerIDs = new ArrayList<>();
+            settingsContainer.boardMarkerPositions = new ArrayList<>();
+            for (JsonElement jsonBoardMarker : jsonSettings.get("board_markers").getAsJsonArray()) {
+                JsonObject jsonMarker = jsonBoardMarker.getAsJsonObject();
+                int id = jsonMarker.get("id").getAsInt();
+                double size = jsonMarker.get("size").getAsDouble();
+                if (size <= 0 || settingsContainer.boardMarkerIDs.contains(id))
+                    exitWithError("Invalid board marker " + id);
+                settingsContainer.boardMarkerIDs.add(id);
+                settingsContainer.boardMarkerPositions.add(new double[] { size,
+                        jsonMarker.get("x").getAsDouble(), jsonMarker.get("y").getAsDouble() });
+            }
+
+            // Region of interest tracking
+            settingsContainer.roiTrackingEnabled = jsonSettings.get("roi_tracking_enabled").getAsBoolean();
+
+            // Region of interest padding (relative to the marker size)
+            settingsContainer.roiPadding = jsonSettings.get("roi_padding").getAsDouble();
+            if (settingsContainer.roiPadding < 0)
+                exitWithError("Invalid region of interest padding");
+
+            // Number of misses in the region of interest before full-frame scan
+            settingsContainer.roiMaxMisses = jsonSettings.get("roi_max_misses").getAsInt();
+            if (settingsContainer.roiMaxMisses < 1)
+                exitWithError("Invalid number of region of interest misses");
+
+            // Pyramid search scales (from coarse to fine)
+            JsonArray jsonPyramidScales = jsonSettings.get("pyramid_scales").getAsJsonArray();
+            settingsContainer.pyramidScales = new ArrayList<>();
+            for (int i = 0; i < Objects.requireNonNull(jsonPyramidScales).size(); i++) {
+                double scale = jsonPyramidScales.get(i).getAsDouble();
+                if (scale <= 0.0 || scale > 1.0
+                        || (i > 0 && scale <= settingsContainer.pyramidScales.get(i - 1)))
+                    exitWithError("Invalid pyramid scales. Scales must be in ascending order within (0, 1]");
+                settingsContainer.pyramidScales.add(scale);
+            }
+
+            // How often the full resolution level of the pyramid is scanned
+            settingsContainer.pyramidFullScanPeriod = jsonSettings.get("pyramid_full_scan_period").getAsInt();
+            if (settingsContainer.pyramidFullScanPeriod < 1)
+                exitWithError("Invalid pyramid full scan period");
+
             // Input filter factor
             settingsContainer.inputFilter = jsonSettings.get("input_filter").getAsDouble();
             if (settingsContainer.inputFilter < 0.0 || settingsContainer.inputFilter > 1.0)
                 exitWithError("Invalid input filter factor");
 
+            // Kalman estimator noises
+            settingsContainer.kalmanPositionNoise = jsonSettings.get("kalman_position_noise").getAsDouble();
+            settingsContainer.kalmanYawNoise = jsonSettings.get("kalman_yaw_noise").getAsDouble();
+            settingsContainer.kalmanAccelerationNoise = jsonSettings.get("kalman_acceleration_noise").getAsDouble();
+            settingsContainer.kalmanYawAccelerationNoise =
+                    jsonSettings.get("kalman_yaw_acceleration_noise").getAsDouble();
+            if (settingsContainer.kalmanPositionNoise <= 0.0 || settingsContainer.kalmanYawNoise <= 0.0
+                    || settingsContainer.kalmanAccelerationNoise <= 0.0
+                    || settingsContainer.kalmanYawAccelerationNoise <= 0.0)
+                exitWithError("Invalid Kalman estimator noises. Noises must be positive");
+
+            // Latency compensation
+            settingsContainer.latencyCompensation = jsonSettings.get("latency_compensation").getAsInt();
+            settingsContainer.maxPredictionHorizon = jsonSettings.get("max_prediction_horizon").getAsInt();
+            if (settingsContainer.latencyCompensation < 0 || settingsContainer.maxPredictionHorizon < 0)
+                exitWithError("Invalid latency compensation. Times must not be negative");
+
             // Setpoint alignment factor
             settingsContainer.setpointAlignmentFactor = jsonSettings.get("setpoint_alignment_factor").getAsDouble();
             if (settingsContainer.setpointAlignmentFactor < 0.0 || settingsContainer.setpointAlignmentFactor > 1.0)
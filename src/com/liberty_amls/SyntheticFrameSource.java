@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.Dictionary;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+import static java.lang.Math.toDegrees;
+
+/**
+ * Renders the first allowed ARUco marker with the known pose into the frames.
+ * The drone descends along a spiral while scale, blur, noise and scene illumination change.
+ * The sequence is fully deterministic and the ground-truth pose of each frame is recorded
+ */
+public class SyntheticFrameSource implements FrameSource {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final SettingsContainer settingsContainer;
+    private final Mat cameraMatrix;
+    private final MatOfDouble cameraDistortions;
+
+    // Plate (marker with white quiet zone) and its corners
+    private static final int MARKER_PIXELS = 200;
+    private static final double PLATE_RATIO = 1.5;
+    private final Mat plate = new Mat();
+    private final MatOfPoint2f plateCorners = new MatOfPoint2f();
+    private final MatOfPoint3f plateCorners3D = new MatOfPoint3f();
+
+    // Rendering buffers
+    private final Mat background = new Mat();
+    private final Mat frame16 = new Mat(), noise16 = new Mat();
+    private final Mat rVec = new Mat(3, 1, CvType.CV_64F), tVec = new Mat(3, 1, CvType.CV_64F);
+    private final Mat rMat = new Mat(3, 3, CvType.CV_64F);
+    private final MatOfPoint2f projectedCorners = new MatOfPoint2f();
+    private final Size frameSize, blurSize = new Size(0, 0);
+
+    // Trajectory
+    private final int framesNum;
+    private double[][] groundTruth;
+    private int frameIndex;
+    private double appliedExposure;
+    private boolean exposureRequested;
+
+    /**
+     * @param cameraMatrix camera matrix used for rendering (same as for pose estimation)
+     * @param cameraDistortions camera distortions used for rendering
+     * @param settingsContainer SettingsContainer class object
+     */
+    public SyntheticFrameSource(Mat cameraMatrix, Mat cameraDistortions, SettingsContainer settingsContainer) {
+        this.cameraMatrix = cameraMatrix;
+        this.cameraDistortions = new MatOfDouble(cameraDistortions);
+        this.settingsContainer = settingsContainer;
+        this.framesNum = settingsContainer.syntheticFrames;
+        this.frameSize = new Size(settingsContainer.frameWidth, settingsContainer.frameHeight);
+    }
+
+    @Override
+    public boolean open() {
+        logger.info("Generating " + framesNum + " synthetic frames of the marker "
+                + settingsContainer.allowedIDs.get(0));
+
+        // Draw the marker with the white quiet zone around it
+        Dictionary dictionary = Aruco.getPredefinedDictionary(settingsContainer.arucoDictionary);
+        Mat marker = new Mat();
+        Aruco.drawMarker(dictionary, settingsContainer.allowedIDs.get(0), MARKER_PIXELS, marker);
+        int margin = (int) (MARKER_PIXELS * (PLATE_RATIO - 1) / 2);
+        Core.copyMakeBorder(marker, marker, margin, margin, margin, margin,
+                Core.BORDER_CONSTANT, new Scalar(255));
+        Imgproc.cvtColor(marker, plate, Imgproc.COLOR_GRAY2BGR);
+        marker.release();
+        double platePixels = plate.cols();
+        plateCorners.fromArray(new Point(0, 0), new Point(platePixels, 0),
+                new Point(platePixels, platePixels), new Point(0, platePixels));
+
+        // Same corners order as ARUco uses (top-left, top-right, bottom-right, bottom-left)
+        double half = settingsContainer.markerSize * PLATE_RATIO / 2;
+        plateCorners3D.fromArray(new Point3(-half, half, 0), new Point3(half, half, 0),
+                new Point3(half, -half, 0), new Point3(-half, -half, 0));
+
+        // Smooth gray texture as a background
+        Random random = new Random(0);
+        Mat texture = new Mat(9, 16, CvType.CV_8UC3);
+        byte[] textureBytes = new byte[9 * 16 * 3];
+        for (int i = 0; i < textureBytes.length; i++)
+            textureBytes[i] = (byte) (90 + random.nextInt(70));
+        texture.put(0, 0, textureBytes);
+        Imgproc.resize(texture, background, frameSize, 0, 0, Imgproc.INTER_CUBIC);
+        texture.release();
+
+        // Noise is generated by OpenCV RNG, so it must be seeded too
+        Core.setRNGSeed(0);
+
+        // Calculate the trajectory and the ground truth
+        groundTruth = new double[framesNum][];
+        for (int i = 0; i < framesNum; i++)
+            groundTruth[i] = calculatePose(i, random);
+        frameIndex = 0;
+        exposureRequested = false;
+        return framesNum > 0;
+    }
+
+    /**
+     * Calculates the pose of the marker for the frame
+     * @param index index of the frame
+     * @param random random generator for the small pose jitter
+     * @return x, y, z, yaw (as the OpenCVHandler calculates it), rotation angle, blur sigma, illumination
+     */
+    private double[] calculatePose(int index, Random random) {
+        double t = framesNum > 1 ? (double) index / (framesNum - 1) : 0;
+
+        // Descending spiral with the small jitter
+        double z = settingsContainer.syntheticHeightRange[0]
+                + (settingsContainer.syntheticHeightRange[1] - settingsContainer.syntheticHeightRange[0]) * t;
+        double radius = settingsContainer.syntheticOffset * (1 - t);
+        double x = radius * Math.cos(4 * Math.PI * t) + random.nextGaussian() * 0.2;
+        double y = radius * Math.sin(4 * Math.PI * t) + random.nextGaussian() * 0.2;
+        double angle = Math.PI * Math.sin(2 * Math.PI * t);
+
+        // The same formula as in OpenCVHandler (marker faces the camera, rotated by angle around Z)
+        double yaw = toDegrees(angle + Math.PI / 2);
+        if (yaw > 180)
+            yaw -= 360;
+
+        // Blur pulses and the illumination slowly changes between minimum and maximum
+        double blur = settingsContainer.syntheticBlur * (0.5 + 0.5 * Math.sin(6 * Math.PI * t));
+        double illumination = settingsContainer.syntheticIlluminationRange[0]
+                + (settingsContainer.syntheticIlluminationRange[1] - settingsContainer.syntheticIlluminationRange[0])
+                * (0.5 - 0.5 * Math.cos(2 * Math.PI * t));
+        return new double[] { x, y, z, yaw, angle, blur, illumination };
+    }
+
+    /**
+     * Exposure from the same illumination model as OpenCVHandler.adaptiveExposure()
+     * @param illumination illumination in lux
+     * @return calculated exposure
+     */
+    private double calculateExposure(double illumination) {
+        return Math.log((Math.pow(1. / settingsContainer.cameraAperture, 2) * 12.5)
+                / (illumination * settingsContainer.cameraISO) * 1000) / 0.30102999566;
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        if (groundTruth == null || frameIndex >= framesNum)
+            return false;
+        double[] pose = groundTruth[frameIndex];
+        frameIndex++;
+
+        // Rotation: marker faces the camera (180 deg around X) and rotated by angle around Z
+        double cos = Math.cos(pose[4]), sin = Math.sin(pose[4]);
+        rMat.put(0, 0, cos, sin, 0, sin, -cos, 0, 0, 0, -1);
+        Calib3d.Rodrigues(rMat, rVec);
+        tVec.put(0, 0, pose[0], pose[1], pose[2]);
+
+        // Project the plate into the frame and warp it over the background
+        Calib3d.projectPoints(plateCorners3D, rVec, tVec, cameraMatrix, cameraDistortions, projectedCorners);
+        Mat homography = Imgproc.getPerspectiveTransform(plateCorners, projectedCorners);
+        background.copyTo(frame);
+        Imgproc.warpPerspective(plate, frame, homography, frameSize, Imgproc.INTER_LINEAR,
+                Core.BORDER_TRANSPARENT);
+        homography.release();
+
+        // Lighting. If exposure is not controlled, the camera keeps the exposure metered at the average light
+        double exposure = exposureRequested ? appliedExposure
+                : calculateExposure(Math.sqrt(settingsContainer.syntheticIlluminationRange[0]
+                * settingsContainer.syntheticIlluminationRange[1]));
+        double gain = Math.pow(2, exposure - calculateExposure(pose[6]));
+        frame.convertTo(frame, -1, Math.min(gain, 4.0), 0);
+
+        // Motion / focus blur
+        if (pose[5] > 0.1)
+            Imgproc.GaussianBlur(frame, frame, blurSize, pose[5]);
+
+        // Sensor noise
+        if (settingsContainer.syntheticNoise > 0) {
+            frame.convertTo(frame16, CvType.CV_16SC3);
+            noise16.create(frame16.size(), CvType.CV_16SC3);
+            Core.randn(noise16, 0, settingsContainer.syntheticNoise);
+            Core.add(frame16, noise16, frame16);
+            frame16.convertTo(frame, CvType.CV_8UC3);
+        }
+        return true;
+    }
+
+    /**
+     * @param index index of the frame (in reading order)
+     * @return ground-truth x, y, z and yaw of the marker on this frame or null if no such frame
+     */
+    public double[] getGroundTruth(int index) {
+        if (groundTruth == null || index < 0 || index >= framesNum)
+            return null;
+        return new double[] { groundTruth[index][0], groundTruth[index][1],
+                groundTruth[index][2], groundTruth[index][3] };
+    }
+
+    /**
+     * @return scene illumination (in lux) of the last read frame
+     */
+    public double getIllumination() {
+        if (groundTruth == null || frameIndex == 0)
+            return 0;
+        return groundTruth[frameIndex - 1][6];
+    }
+
+    /**
+     * @return number of already read frames
+     */
+    public int getFrameIndex() {
+        return frameIndex;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return groundTruth != null && frameIndex < framesNum;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public double getFrameRate() {
+        return settingsContainer.replayFPS;
+    }
+
+    @Override
+    public void setExposure(double exposure) {
+        appliedExposure = exposure;
+        exposureRequested = true;
+    }
+
+    @Override
+    public void release() {
+        groundTruth = null;
+    }
+
+    @Override
+    public String toString() {
+        return "synthetic marker scene";
+    }
+}
@@ -31,8 +31,7 @@ package com.liberty_amls;
 
 import org.apache.log4j.Logger;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
 
 public class TelemetryHandler implements Runnable {
     private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
@@ -40,182 +39,192 @@ public class TelemetryHandler implements Runnable {
     private final TelemetryContainer telemetryContainer;
     private final SerialHandler serialHandler;
     private final UDPHandler udpHandler;
-    private final byte[] telemetryBuffer = new byte[34];
-    private byte telemetryBytePrevious = 0;
-    private int telemetryBufferPosition = 0;
     private volatile boolean handleRunning;
 
+    // Serial bytes are taken from the SerialHandler ring in chunks (UDP datagrams are decoded by the UDPSelector thread)
+    private final byte[] receiveChunk = new byte[256];
+    private final ByteBuffer receiveChunkBuffer = ByteBuffer.wrap(receiveChunk);
+    private final PacketDecoder packetDecoder;
+    private final LinkStatistics linkStatistics;
+    private final LinkWatchdog.Deadline lostDeadline;
+
     TelemetryHandler(TelemetryContainer telemetryContainer, SerialHandler serialHandler,
-                     UDPHandler udpHandler, SettingsContainer settingsContainer) {
+                     UDPHandler udpHandler, LinkWatchdog linkWatchdog, SettingsContainer settingsContainer) {
         this.telemetryContainer = telemetryContainer;
         this.serialHandler = serialHandler;
         this.udpHandler = udpHandler;
         this.settingsContainer = settingsContainer;
+        this.packetDecoder = new PacketDecoder(34, settingsContainer.droneDataSuffix1,
+                settingsContainer.droneDataSuffix2, this::parsePacket);
+        this.linkStatistics = new LinkStatistics(packetDecoder);
+        this.udpHandler.setReceiveListener(this::decodeReceived);
+        this.lostDeadline = linkWatchdog.createDeadline("Drone telemetry", settingsContainer.telemetryLostTime,
+                this::onTelemetryLost, this::onTelemetryRestored);
     }
 
+    /**
+     * Decodes bytes received from the serial port. Must be started only if UDP is not used
+     */
     @Override
     public void run() {
         // Set loop flag
         logger.info("Starting main loop");
 
-        // Initialize timer
-        Timer telemetryLostCheckTimer = new Timer("Telemetry lost checking timer");
-
-        // Create task for checking lost status
-        TimerTask telemetryLostCheck = new TimerTask() {
-            @Override
-            public void run() {
-                // Check platform lost status
-                if (!telemetryContainer.telemetryLost &&
-                        System.currentTimeMillis() - telemetryContainer.telemetryLastPacketTime
-                                >= settingsContainer.telemetryLostTime) {
-                    logger.error("Drone telemetry lost!");
-                    telemetryContainer.telemetryLost = true;
-                }
-            }
-        };
-
-        // Start timer
-        telemetryLostCheckTimer.scheduleAtFixedRate(telemetryLostCheck, settingsContainer.telemetryLostTime,
-                settingsContainer.telemetryLostTime);
-
         // Start main loop
         handleRunning = true;
         while (handleRunning) {
             try {
-                // Read and parse data from UDP or serial port
-                if (udpHandler.isUdpPortOpened()) {
-                    readAndParse(udpHandler.takeSingleByte());
-                } else {
-                    readAndParse(serialHandler.takeSingleByte());
-                }
+                // Read and decode data from serial port
+                int bytesNum = serialHandler.readBytes(receiveChunk);
+                receiveChunkBuffer.clear();
+                receiveChunkBuffer.limit(bytesNum);
+                decodeReceived(receiveChunkBuffer);
             } catch (Exception e) {
                 logger.error("Error reading telemetry from the drone!", e);
             }
         }
     }
 
-    private void readAndParse(byte data) {
-        telemetryBuffer[telemetryBufferPosition] = data;
-        if (telemetryBytePrevious == settingsContainer.droneDataSuffix1
-                && telemetryBuffer[telemetryBufferPosition] == settingsContainer.droneDataSuffix2) {
-            // If data suffix appears
-            // Reset buffer position
-            telemetryBufferPosition = 0;
-
-            // Reset check sum
-            byte telemetryCheckByte = 0;
-
-            // Calculate check sum
-            for (int i = 0; i <= 30; i++)
-                telemetryCheckByte ^= telemetryBuffer[i];
-
-            if (telemetryCheckByte == telemetryBuffer[31]) {
-                // Parse data if the checksums are equal
-
-                // Error status
-                telemetryContainer.errorStatus = (int) telemetryBuffer[0] & 0xFF;
-
-                // Flight mode
-                telemetryContainer.flightMode = (int) telemetryBuffer[1] & 0xFF;
-
-                // Battery voltage
-                telemetryContainer.batteryVoltage = (double) (((int) telemetryBuffer[2] & 0xFF)) / 10.0;
-
-                // Temperature
-                telemetryContainer.temperature = (short) (((short) telemetryBuffer[4] & 0xFF)
-                        | ((short) telemetryBuffer[3] & 0xFF) << 8);
-                telemetryContainer.temperature = (telemetryContainer.temperature / 340.0) + 36.53;
-
-                // Roll, pitch angles
-                telemetryContainer.angleRoll = (int) telemetryBuffer[5] & 0xFF;
-                telemetryContainer.angleRoll -= 100;
-                telemetryContainer.anglePitch = (int) telemetryBuffer[6] & 0xFF;
-                telemetryContainer.anglePitch -= 100;
-
-                // Start status
-                telemetryContainer.startStatus = (int) telemetryBuffer[7] & 0xFF;
-
-                // Altitude
-                telemetryContainer.altitude = ((int) telemetryBuffer[9] & 0xFF)
-                        | ((int) telemetryBuffer[8] & 0xFF) << 8;
-                telemetryContainer.altitude -= 1000;
-
-                // Takeoff throttle
-                telemetryContainer.takeoffThrottle = ((int) telemetryBuffer[11] & 0xFF)
-                        | ((int) telemetryBuffer[10] & 0xFF) << 8;
-
-                // Takeoff detected
-                telemetryContainer.takeoffDetected = ((int) telemetryBuffer[12] & 0xFF) > 0;
-
-                // Yaw angle
-                telemetryContainer.angleYaw = ((int) telemetryBuffer[14] & 0xFF)
-                        | ((int) telemetryBuffer[13] & 0xFF) << 8;
-
-                // Heading lock
-                telemetryContainer.headingLock = ((int) telemetryBuffer[15] & 0xFF) > 0;
-
-                // New GPS coordinates
-                telemetryContainer.gps.setFromInt(((int) telemetryBuffer[19] & 0xFF)
-                        | ((int) telemetryBuffer[18] & 0xFF) << 8
-                        | ((int) telemetryBuffer[17] & 0xFF) << 16
-                        | ((int) telemetryBuffer[16] & 0xFF) << 24,
-                        ((int) telemetryBuffer[23] & 0xFF)
-                        | ((int) telemetryBuffer[22] & 0xFF) << 8
-                        | ((int) telemetryBuffer[21] & 0xFF) << 16
-                        | ((int) telemetryBuffer[20] & 0xFF) << 24);
-
-                // TNumber of GPS satellites
-                telemetryContainer.gps.setSatellitesNum((int) telemetryBuffer[24] & 0xFF);
-
-                // Ground speed (from GPS)
-                telemetryContainer.gps.setGroundSpeed((((int) telemetryBuffer[26] & 0xFF)
-                        | ((int) telemetryBuffer[25] & 0xFF) << 8) / 10.0);
-
-                // Liberty Way sequence step
-                if ((int) (telemetryBuffer[27] & 0xFF) < 128) {
-                    telemetryContainer.linkWaypointStep = ((int) telemetryBuffer[27] & 0xFF);
-                    telemetryContainer.autoLandingStep = 0;
-                }
-
-                // Auto-landing step
-                else {
-                    telemetryContainer.linkWaypointStep = 0;
-                    telemetryContainer.autoLandingStep = ((int) telemetryBuffer[27] & 0xFF) - 128;
-                }
-
-                // Liberty Way waypoint index
-                telemetryContainer.waypointIndex = ((int) telemetryBuffer[28] & 0xFF);
-
-                // Sonarus distance to ground
-                telemetryContainer.sonarusDistanceCm = ((int) telemetryBuffer[29] & 0xFF) * 2;
-
-                // Illumination from LUX meter
-                telemetryContainer.illumination = ((int) telemetryBuffer[30] & 0xFF) - 1.0;
-                if (telemetryContainer.illumination >= 0.0)
-                    telemetryContainer.illumination = Math.pow(telemetryContainer.illumination, 2.105);
-                else
-                    telemetryContainer.illumination = 0;
-
-                // Increment packets counter
-                telemetryContainer.packetsNumber++;
-
-                // Reset timer and lost flag
-                if (telemetryContainer.telemetryLost)
-                    logger.warn("Drone telemetry restored");
-                telemetryContainer.telemetryLost = false;
-                telemetryContainer.telemetryLastPacketTime = System.currentTimeMillis();
-            } else
-                logger.warn("Wrong telemetry checksum");
-        } else {
-            // Store data bytes
-            telemetryBytePrevious = telemetryBuffer[telemetryBufferPosition];
-            telemetryBufferPosition++;
-
-            // Reset buffer on overflow
-            if (telemetryBufferPosition > 33)
-                telemetryBufferPosition = 0;
+    /**
+     * @return decoder of the received packets (packets and errors counters)
+     */
+    public PacketDecoder getPacketDecoder() {
+        return packetDecoder;
+    }
+
+    /**
+     * @return rolling link quality statistics (packet rate, jitter, checksum failures)
+     */
+    public LinkStatistics getLinkStatistics() {
+        return linkStatistics;
+    }
+
+    /**
+     * Decodes received bytes (from the serial port or UDP datagram)
+     * @param data received bytes between position and limit
+     */
+    private void decodeReceived(ByteBuffer data) {
+        long checksumErrors = packetDecoder.getChecksumErrors();
+        packetDecoder.decode(data);
+        if (packetDecoder.getChecksumErrors() != checksumErrors)
+            logger.warn("Wrong telemetry checksum");
+    }
+
+    /**
+     * Parses a valid packet (check byte is already verified by the PacketDecoder)
+     * @param packet buffer with the packet
+     * @param offset index of the first byte of the packet
+     */
+    private void parsePacket(ByteBuffer packet, int offset) {
+        // Error status
+        telemetryContainer.errorStatus = (int) packet.get(offset) & 0xFF;
+
+        // Flight mode
+        telemetryContainer.flightMode = (int) packet.get(offset + 1) & 0xFF;
+
+        // Battery voltage
+        telemetryContainer.batteryVoltage = (double) (((int) packet.get(offset + 2) & 0xFF)) / 10.0;
+
+        // Temperature
+        telemetryContainer.temperature = (short) (((short) packet.get(offset + 4) & 0xFF)
+                | ((short) packet.get(offset + 3) & 0xFF) << 8);
+        telemetryContainer.temperature = (telemetryContainer.temperature / 340.0) + 36.53;
+
+        // Roll, pitch angles
+        telemetryContainer.angleRoll = (int) packet.get(offset + 5) & 0xFF;
+        telemetryContainer.angleRoll -= 100;
+        telemetryContainer.anglePitch = (int) packet.get(offset + 6) & 0xFF;
+        telemetryContainer.anglePitch -= 100;
+
+        // Start status
+        telemetryContainer.startStatus = (int) packet.get(offset + 7) & 0xFF;
+
+        // Altitude
+        telemetryContainer.altitude = ((int) packet.get(offset + 9) & 0xFF)
+                | ((int) packet.get(offset + 8) & 0xFF) << 8;
+        telemetryContainer.altitude -= 1000;
+
+        // Takeoff throttle
+        telemetryContainer.takeoffThrottle = ((int) packet.get(offset + 11) & 0xFF)
+                | ((int) packet.get(offset + 10) & 0xFF) << 8;
+
+        // Takeoff detected
+        telemetryContainer.takeoffDetected = ((int) packet.get(offset + 12) & 0xFF) > 0;
+
+        // Yaw angle
+        telemetryContainer.angleYaw = ((int) packet.get(offset + 14) & 0xFF)
+                | ((int) packet.get(offset + 13) & 0xFF) << 8;
+
+        // Heading lock
+        telemetryContainer.headingLock = ((int) packet.get(offset + 15) & 0xFF) > 0;
+
+        // New GPS coordinates
+        telemetryContainer.gps.setFromInt(((int) packet.get(offset + 19) & 0xFF)
+                | ((int) packet.get(offset + 18) & 0xFF) << 8
+                | ((int) packet.get(offset + 17) & 0xFF) << 16
+                | ((int) packet.get(offset + 16) & 0xFF) << 24,
+                ((int) packet.get(offset + 23) & 0xFF)
+                | ((int) packet.get(offset + 22) & 0xFF) << 8
+                | ((int) packet.get(offset + 21) & 0xFF) << 16
+                | ((int) packet.get(offset + 20) & 0xFF) << 24);
+
+        // TNumber of GPS satellites
+        telemetryContainer.gps.setSatellitesNum((int) packet.get(offset + 24) & 0xFF);
+
+        // Ground speed (from GPS)
+        telemetryContainer.gps.setGroundSpeed((((int) packet.get(offset + 26) & 0xFF)
+                | ((int) packet.get(offset + 25) & 0xFF) << 8) / 10.0);
+
+        // Liberty Way sequence step
+        if ((int) (packet.get(offset + 27) & 0xFF) < 128) {
+            telemetryContainer.linkWaypointStep = ((int) packet.get(offset + 27) & 0xFF);
+            telemetryContainer.autoLandingStep = 0;
         }
+
+        // Auto-landing step
+        else {
+            telemetryContainer.linkWaypointStep = 0;
+            telemetryContainer.autoLandingStep = ((int) packet.get(offset + 27) & 0xFF) - 128;
+        }
+
+        // Liberty Way waypoint index
+        telemetryContainer.waypointIndex = ((int) packet.get(offset + 28) & 0xFF);
+
+        // Sonarus distance to ground
+        telemetryContainer.sonarusDistanceCm = ((int) packet.get(offset + 29) & 0xFF) * 2;
+
+        // Illumination from LUX meter
+        telemetryContainer.illumination = ((int) packet.get(offset + 30) & 0xFF) - 1.0;
+        if (telemetryContainer.illumination >= 0.0)
+            telemetryContainer.illumination = Math.pow(telemetryContainer.illumination, 2.105);
+        else
+            telemetryContainer.illumination = 0;
+
+        // Increment packets counter
+        telemetryContainer.packetsNumber++;
+        linkStatistics.onPacket();
+
+        // Re-arm lost deadline
+        telemetryContainer.telemetryLastPacketTime = System.currentTimeMillis();
+        lostDeadline.feed();
+    }
+
+    /**
+     * Called from the LinkWatchdog thread if no packets were received during telemetry_lost_time
+     */
+    private void onTelemetryLost() {
+        logger.error("Drone telemetry lost! Serial overflows: " + serialHandler.getOverflows()
+                + ", dropped bytes: " + serialHandler.getDroppedBytes() + ", framing errors: " + packetDecoder.getResyncs()
+                + ", checksum errors: " + packetDecoder.getChecksumErrors());
+        telemetryContainer.telemetryLost = true;
+    }
+
+    /**
+     * Called from the decoding thread on the first packet after the loss
+     */
+    private void onTelemetryRestored() {
+        logger.warn("Drone telemetry restored");
+        telemetryContainer.telemetryLost = false;
     }
 
     public void stop() {
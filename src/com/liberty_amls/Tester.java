@@ -30,21 +30,31 @@
 package com.liberty_amls;
 
 import org.apache.log4j.Logger;
+import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
 import org.opencv.videoio.VideoCapture;
 
 import java.io.File;
+import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.Random;
+
+import static java.lang.Math.toDegrees;
 
 public class Tester {
     private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
 
     private final String testLevel;
 
+    // Loopback ports of the link benchmark (Liberty-Way and firmware emulators)
+    private static final int LINK_BENCHMARK_PORT = 46100;
+
     /**
      * This class provides a series of automated tests to be performed to check system compatibility
-     * @param testLevel level of test (build, opencv, camera, server, full)
+     * @param testLevel level of test (build, opencv, camera, server, full, vision, link)
      */
     Tester(String testLevel) {
         this.testLevel = testLevel;
@@ -103,6 +113,24 @@ public class Tester {
                         System.exit(1);
                     return;
 
+                case "vision":
+                    // Detection benchmark on the synthetic marker scene
+                    logger.info("Performing vision benchmark");
+                    if (visionBenchmark())
+                        System.exit(0);
+                    else
+                        System.exit(1);
+                    return;
+
+                case "link":
+                    // Link benchmark with the loopback firmware emulators
+                    logger.info("Performing link benchmark");
+                    if (linkBenchmark())
+                        System.exit(0);
+                    else
+                        System.exit(1);
+                    return;
+
                 default:
                     // Wrong test level
                     throw new TesterException("Wrong test level provided!");
@@ -200,6 +228,295 @@ public class Tester {
         return false;
     }
 
+    /**
+     * Runs the detection and pose estimation on the synthetic marker scene
+     * and reports FPS, latency and pose error against the ground truth
+     */
+    public boolean visionBenchmark() {
+        // Load native library (from java-library-path)
+        logger.info("Loading OpenCV Native Library");
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        // Parse settings and load camera calibration
+        SettingsContainer settingsContainer = new SettingsContainer();
+        new SettingsHandler(settingsContainer, FileWorkers.loadJsonObject("settings.json")).parseSettings();
+        Mat cameraMatrix = FileWorkers.loadCameraMatrix(settingsContainer.cameraMatrixFile);
+        Mat cameraDistortions = FileWorkers.loadCameraDistortions(settingsContainer.cameraDistortionsFile);
+
+        // Open the synthetic scene
+        SyntheticFrameSource frameSource = new SyntheticFrameSource(cameraMatrix, cameraDistortions,
+                settingsContainer);
+        if (!frameSource.open()) {
+            logger.error("Can't generate synthetic frames. Test failed!");
+            return false;
+        }
+        MarkerDetector markerDetector = new MarkerDetector(cameraMatrix, cameraDistortions, settingsContainer);
+
+        Mat frame = new Mat(), gray = new Mat(), rVec = new Mat(), tVec = new Mat(), rMat = new Mat();
+        double[] tBuffer = new double[3], rBuffer = new double[9];
+        long[] latencies = new long[settingsContainer.syntheticFrames];
+        int framesNum = 0, detectedNum = 0;
+        double translationErrorSum = 0, translationErrorMax = 0, yawErrorSum = 0;
+        long processingTime = 0;
+
+        while (frameSource.read(frame)) {
+            double[] groundTruth = frameSource.getGroundTruth(frameSource.getFrameIndex() - 1);
+
+            // The same steps as in OpenCVHandler
+            long timeStart = System.nanoTime();
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_RGB2GRAY);
+            boolean markerFound = markerDetector.detect(gray, true);
+            double yaw = 0;
+            if (markerFound)
+                markerFound = markerDetector.estimatePose(rVec, tVec);
+            if (markerFound) {
+                tVec.get(0, 0, tBuffer);
+                Calib3d.Rodrigues(rVec, rMat);
+                rMat.get(0, 0, rBuffer);
+                yaw = toDegrees(Math.atan2(rBuffer[3], rBuffer[0]) + Math.PI / 2);
+                if (yaw > 180)
+                    yaw -= 360;
+            }
+            long latency = System.nanoTime() - timeStart;
+            latencies[framesNum] = latency;
+            processingTime += latency;
+            framesNum++;
+
+            // Compare with the ground truth
+            if (markerFound) {
+                detectedNum++;
+                double translationError = Math.sqrt(Math.pow(tBuffer[0] - groundTruth[0], 2)
+                        + Math.pow(tBuffer[1] - groundTruth[1], 2) + Math.pow(tBuffer[2] - groundTruth[2], 2));
+                translationErrorSum += translationError;
+                translationErrorMax = Math.max(translationErrorMax, translationError);
+                double yawError = Math.abs(yaw - groundTruth[3]);
+                yawErrorSum += Math.min(yawError, 360 - yawError);
+            }
+        }
+        markerDetector.release();
+
+        // Print results
+        DecimalFormat decimalFormat = new DecimalFormat("#.##");
+        Arrays.sort(latencies, 0, framesNum);
+        logger.info("Frames: " + framesNum + ", detected: " + detectedNum
+                + " (" + decimalFormat.format(100.0 * detectedNum / framesNum) + "%)");
+        logger.info("FPS: " + decimalFormat.format(framesNum / (processingTime / 1e9))
+                + ", latency p50: " + decimalFormat.format(latencies[framesNum / 2] / 1e6)
+                + " ms, p99: " + decimalFormat.format(latencies[(int) (framesNum * 0.99)] / 1e6)
+                + " ms, max: " + decimalFormat.format(latencies[framesNum - 1] / 1e6) + " ms");
+        if (detectedNum > 0)
+            logger.info("Translation error mean: " + decimalFormat.format(translationErrorSum / detectedNum)
+                    + ", max: " + decimalFormat.format(translationErrorMax)
+                    + ", yaw error mean: " + decimalFormat.format(yawErrorSum / detectedNum) + " deg");
+
+        // Most of the frames must be detected
+        if (detectedNum * 2 >= framesNum) {
+            logger.info("Vision benchmark passed");
+            return true;
+        } else
+            logger.error("The marker is detected on less than half of the frames. Test failed!");
+        return false;
+    }
+
+    /**
+     * Runs LinkSender, TelemetryHandler and PlatformHandler against the loopback UDP firmware emulators
+     * and reports round-trip latency, packets per second and checksum failures
+     */
+    public boolean linkBenchmark() throws Exception {
+        SettingsContainer settingsContainer = new SettingsContainer();
+        new SettingsHandler(settingsContainer, FileWorkers.loadJsonObject("settings.json")).parseSettings();
+
+        // Liberty-Way side (serial ports are not opened)
+        TelemetryContainer telemetryContainer = new TelemetryContainer();
+        PlatformContainer platformContainer = new PlatformContainer();
+        SerialHandler serialHandlerLink = new SerialHandler("", "", settingsContainer.serialReconnectTime,
+                settingsContainer.serialReadTimeout);
+        SerialHandler serialHandlerPlatform = new SerialHandler("", "", settingsContainer.serialReconnectTime,
+                settingsContainer.serialReadTimeout);
+        UDPHandler udpHandlerLink = new UDPHandler("127.0.0.1:" + LINK_BENCHMARK_PORT,
+                String.valueOf(LINK_BENCHMARK_PORT + 1));
+        UDPHandler udpHandlerPlatform = new UDPHandler("127.0.0.1:" + (LINK_BENCHMARK_PORT + 2),
+                String.valueOf(LINK_BENCHMARK_PORT + 3));
+        LinkWatchdog linkWatchdog = new LinkWatchdog();
+        TelemetryHandler telemetryHandler = new TelemetryHandler(telemetryContainer, serialHandlerLink,
+                udpHandlerLink, linkWatchdog, settingsContainer);
+        PlatformHandler platformHandler = new PlatformHandler(platformContainer, new PositionContainer(),
+                serialHandlerPlatform, udpHandlerPlatform, linkWatchdog, settingsContainer, new WaypointsContainer());
+        LinkSender linkSender = new LinkSender(serialHandlerLink, udpHandlerLink, settingsContainer,
+                new LatencyMonitor());
+
+        // Firmware side. Liberty-Link echoes DDC roll in the takeoff throttle field of the telemetry
+        FirmwareEmulator linkEmulator = new FirmwareEmulator("Liberty-Link",
+                LINK_BENCHMARK_PORT + 1, LINK_BENCHMARK_PORT,
+                12, settingsContainer.droneDataSuffix1, settingsContainer.droneDataSuffix2,
+                34, settingsContainer.droneDataSuffix1, settingsContainer.droneDataSuffix2, 10);
+        FirmwareEmulator platformEmulator = new FirmwareEmulator("platform",
+                LINK_BENCHMARK_PORT + 3, settingsContainer.udpMultiplexed ? LINK_BENCHMARK_PORT : LINK_BENCHMARK_PORT + 2,
+                6, settingsContainer.platformDataSuffix1, settingsContainer.platformDataSuffix2,
+                18, settingsContainer.platformDataSuffix1, settingsContainer.platformDataSuffix2, -1);
+        new Thread(linkEmulator).start();
+        new Thread(platformEmulator).start();
+
+        // Open sockets and start reader and writer threads
+        if (settingsContainer.udpMultiplexed) {
+            logger.info("Using one multiplexed UDP socket");
+            udpHandlerLink.multiplex(udpHandlerPlatform);
+        }
+        udpHandlerLink.openUDP();
+        udpHandlerPlatform.openUDP();
+        UDPSelector udpSelector = new UDPSelector();
+        udpSelector.open(udpHandlerLink, udpHandlerPlatform);
+        new Thread(udpSelector).start();
+        new Thread(udpHandlerLink.getTransmitQueue()).start();
+        if (!udpHandlerPlatform.isMultiplexed())
+            new Thread(udpHandlerPlatform.getTransmitQueue()).start();
+
+        DecimalFormat decimalFormat = new DecimalFormat("#.##");
+        Random random = new Random(0);
+        boolean passed = true;
+
+        // Round trip: DDC packet -> Liberty-Link emulator -> telemetry packet -> TelemetryHandler
+        int roundTripsNum = 1000, roundTripsLost = 0;
+        long[] roundTrips = new long[roundTripsNum];
+        for (int i = 0; i < roundTripsNum; i++) {
+            int sequence = 1 + i % 30000;
+            long timeStart = System.nanoTime();
+            linkSender.sendDDC(sequence, 1500, 1500, 1500, LinkSender.CMD_BITS_DDC);
+            int echoed = -1;
+            while (echoed != sequence && System.nanoTime() - timeStart < 100000000L) {
+                Thread.onSpinWait();
+                synchronized (telemetryContainer) {
+                    echoed = telemetryContainer.takeoffThrottle;
+                }
+            }
+            roundTrips[i] = System.nanoTime() - timeStart;
+            if (echoed != sequence)
+                roundTripsLost++;
+        }
+        Arrays.sort(roundTrips);
+        logger.info("Round trips: " + roundTripsNum + ", lost: " + roundTripsLost
+                + ", p50: " + decimalFormat.format(roundTrips[roundTripsNum / 2] / 1e3)
+                + " us, p99: " + decimalFormat.format(roundTrips[(int) (roundTripsNum * 0.99)] / 1e3)
+                + " us, max: " + decimalFormat.format(roundTrips[roundTripsNum - 1] / 1e3) + " us");
+        if (roundTripsLost > 0) {
+            logger.error("Some round trips are lost. Test failed!");
+            passed = false;
+        }
+
+        // Uplink: LinkSender -> Liberty-Link emulator as fast as the transmit queue is drained
+        int linkPacketsNum = 20000;
+        long linkPacketsStart = linkEmulator.getPacketDecoder().getPackets();
+        TransmitQueue transmitQueue = udpHandlerLink.getTransmitQueue();
+        long timeStart = System.nanoTime();
+        for (int i = 0; i < linkPacketsNum; i++) {
+            while (transmitQueue.getFramesQueued() >= 8)
+                Thread.onSpinWait();
+            linkSender.sendDDC(1500, 1500, 1500, 1500, LinkSender.CMD_BITS_DDC);
+        }
+        long linkPacketsReceived = waitForPackets(linkEmulator.getPacketDecoder(), linkPacketsStart,
+                linkPacketsNum);
+        double linkTime = (System.nanoTime() - timeStart) / 1e9;
+        logger.info("Uplink packets sent: " + linkPacketsNum + ", received: " + linkPacketsReceived
+                + " (" + decimalFormat.format(linkPacketsReceived / linkTime) + " packets/s), dropped by the queue: "
+                + transmitQueue.getFramesDropped()
+                + ", checksum failures: " + linkEmulator.getPacketDecoder().getChecksumErrors());
+        if (linkEmulator.getPacketDecoder().getChecksumErrors() > 0) {
+            logger.error("Uplink packets are corrupted. Test failed!");
+            passed = false;
+        }
+
+        // Downlink: emulators -> TelemetryHandler and PlatformHandler (1% of the packets are corrupted)
+        passed &= downlinkBenchmark("Telemetry", linkEmulator, telemetryHandler.getPacketDecoder(),
+                telemetryHandler.getLinkStatistics(), 50000, random, decimalFormat);
+        passed &= downlinkBenchmark("Platform", platformEmulator, platformHandler.getPacketDecoder(),
+                platformHandler.getLinkStatistics(), 50000, random, decimalFormat);
+
+        // Loss detection: no more platform packets, the deadline must expire after platform_lost_time
+        while (!platformContainer.platformLost
+                && System.currentTimeMillis() - platformContainer.platformLastPacketTime
+                < settingsContainer.platformLostTime * 2L)
+            Thread.sleep(1);
+        long lossDelay = System.currentTimeMillis() - platformContainer.platformLastPacketTime
+                - settingsContainer.platformLostTime;
+        logger.info("Platform loss detected: " + platformContainer.platformLost + ", delay after the deadline: "
+                + lossDelay + " ms");
+        if (!platformContainer.platformLost) {
+            logger.error("Platform loss is not detected. Test failed!");
+            passed = false;
+        }
+
+        // Close everything
+        linkWatchdog.stop();
+        udpSelector.stop();
+        udpHandlerLink.closeUDP();
+        udpHandlerPlatform.closeUDP();
+        linkEmulator.stop();
+        platformEmulator.stop();
+
+        if (passed)
+            logger.info("Link benchmark passed");
+        return passed;
+    }
+
+    /**
+     * Sends a burst of packets from the emulator and checks the number of decoded and corrupted packets
+     * @param name name of the stream (for logs)
+     * @param firmwareEmulator FirmwareEmulator that sends packets
+     * @param packetDecoder PacketDecoder of the handler
+     * @param linkStatistics LinkStatistics of the handler
+     * @param packetsNum number of packets in the burst
+     * @return true if all packets are received and all corrupted packets are detected
+     */
+    private boolean downlinkBenchmark(String name, FirmwareEmulator firmwareEmulator, PacketDecoder packetDecoder,
+                                      LinkStatistics linkStatistics, int packetsNum, Random random,
+                                      DecimalFormat decimalFormat) throws Exception {
+        long packetsStart = packetDecoder.getPackets() + packetDecoder.getChecksumErrors();
+        long checksumErrorsStart = packetDecoder.getChecksumErrors();
+        long timeStart = System.nanoTime();
+        int corruptedNum = firmwareEmulator.sendBurst(packetsNum, 0.01, random);
+        long packetsReceived = waitForPackets(packetDecoder, packetsStart, packetsNum);
+        double time = (System.nanoTime() - timeStart) / 1e9;
+        long checksumErrors = packetDecoder.getChecksumErrors() - checksumErrorsStart;
+        logger.info(name + " packets sent: " + packetsNum + ", received: " + packetsReceived
+                + " (" + decimalFormat.format(packetsReceived / time) + " packets/s), checksum failures: "
+                + checksumErrors + " of " + corruptedNum + " corrupted");
+        LinkStatistics.Report report = linkStatistics.snapshot();
+        logger.info(name + " link statistics of the last second: "
+                + decimalFormat.format(report.packetsRate) + " packets/s, interval p99: "
+                + decimalFormat.format(report.intervalP99) + " ms, jitter: "
+                + decimalFormat.format(report.jitter) + " ms, checksum failures: "
+                + decimalFormat.format(report.checksumFailureRate * 100) + "%, resyncs: "
+                + report.resyncs);
+        if (packetsReceived != packetsNum || checksumErrors != corruptedNum) {
+            logger.error(name + " packets are lost or not validated. Test failed!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the decoder handles the expected number of packets (valid and corrupted)
+     * or no new packets are received for 500 ms
+     * @return number of handled packets
+     */
+    private long waitForPackets(PacketDecoder packetDecoder, long packetsStart, int packetsNum)
+            throws InterruptedException {
+        long packetsLast = -1, timeLast = System.currentTimeMillis();
+        while (true) {
+            long packets;
+            synchronized (packetDecoder) {
+                packets = packetDecoder.getPackets() + packetDecoder.getChecksumErrors() - packetsStart;
+            }
+            if (packets >= packetsNum || System.currentTimeMillis() - timeLast > 500)
+                return packets;
+            if (packets != packetsLast) {
+                packetsLast = packets;
+                timeLast = System.currentTimeMillis();
+            }
+            Thread.sleep(1);
+        }
+    }
+
     public boolean serverTest() {
         // Create settings container and parse app settings
         SettingsContainer settingsContainer = new SettingsContainer();
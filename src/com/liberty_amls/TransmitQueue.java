@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Outbound queue of one transport (serial port or UDP socket) drained by its own writer thread.
+ * Frames are copied into preallocated slots, so senders never share buffers with the writer
+ * and nothing is allocated per frame. Priority frames (FTS, land, etc.) are always written before normal ones
+ * and queued frames with the same destination are written in batches
+ */
+public class TransmitQueue implements Runnable {
+    /**
+     * Writes frames to the transport
+     */
+    public interface FrameWriter {
+        /**
+         * @param data one or more frames one after another
+         * @param length number of bytes to write
+         * @param destination destination of all the frames (multiplexed UDP socket)
+         */
+        void write(byte[] data, int length, int destination);
+    }
+
+    private static final int SLOT_LENGTH = 32;
+    private static final int SLOTS_NUM = 16;
+    private static final int BATCH_FRAMES = 8;
+
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final String name;
+    private final FrameWriter frameWriter;
+
+    // Pool of frames. Free slots are stored as stack, lanes as rings of slot indexes
+    private final byte[][] slots = new byte[SLOTS_NUM][SLOT_LENGTH];
+    private final int[] slotsLength = new int[SLOTS_NUM];
+    private final int[] slotsDestination = new int[SLOTS_NUM];
+    private final int[] freeSlots = new int[SLOTS_NUM];
+    private int freeSlotsNum = SLOTS_NUM;
+    private final int[] priorityLane = new int[SLOTS_NUM], normalLane = new int[SLOTS_NUM];
+    private int priorityHead = 0, priorityNum = 0, normalHead = 0, normalNum = 0;
+
+    // Frames of one batch are copied here and written at once
+    private final byte[] batchBuffer = new byte[SLOT_LENGTH * BATCH_FRAMES];
+
+    private boolean queueRunning = true;
+    private long framesWritten = 0, framesDropped = 0, batchesWritten = 0;
+
+    /**
+     * @param name name of the transport (for logs)
+     * @param frameWriter method that writes data to the transport
+     */
+    public TransmitQueue(String name, FrameWriter frameWriter) {
+        this.name = name;
+        this.frameWriter = frameWriter;
+        for (int i = 0; i < SLOTS_NUM; i++)
+            freeSlots[i] = i;
+    }
+
+    /**
+     * Copies the frame into the queue. Can be called from any thread.
+     * If the queue is full, the oldest normal frame is dropped (it is outdated anyway)
+     * @param frame bytes of the frame
+     * @param length length of the frame (up to 32 bytes)
+     * @param priority true to write the frame before all normal frames
+     * @return true if the frame is queued
+     */
+    public boolean offer(byte[] frame, int length, boolean priority) {
+        return offer(frame, length, priority, 0);
+    }
+
+    /**
+     * Copies the frame into the queue. Can be called from any thread
+     * @param frame bytes of the frame
+     * @param length length of the frame (up to 32 bytes)
+     * @param priority true to write the frame before all normal frames
+     * @param destination destination of the frame (passed to the writer)
+     * @return true if the frame is queued
+     */
+    public synchronized boolean offer(byte[] frame, int length, boolean priority, int destination) {
+        if (length <= 0 || length > SLOT_LENGTH)
+            throw new IllegalArgumentException("Wrong frame length " + length);
+
+        // Take free slot or reuse the oldest normal frame
+        int slot;
+        if (freeSlotsNum > 0)
+            slot = freeSlots[--freeSlotsNum];
+        else if (normalNum > 0) {
+            slot = normalLane[normalHead];
+            normalHead = (normalHead + 1) % SLOTS_NUM;
+            normalNum--;
+            framesDropped++;
+        } else {
+            framesDropped++;
+            return false;
+        }
+
+        // Copy the frame and add it to the lane
+        System.arraycopy(frame, 0, slots[slot], 0, length);
+        slotsLength[slot] = length;
+        slotsDestination[slot] = destination;
+        if (priority) {
+            priorityLane[(priorityHead + priorityNum) % SLOTS_NUM] = slot;
+            priorityNum++;
+        } else {
+            normalLane[(normalHead + normalNum) % SLOTS_NUM] = slot;
+            normalNum++;
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Writer loop. Waits for frames and writes them in batches
+     */
+    @Override
+    public void run() {
+        logger.info("Starting " + name + " transmit loop");
+        while (true) {
+            int batchLength = 0, batchDestination;
+            synchronized (this) {
+                // Wait for frames
+                while (queueRunning && priorityNum + normalNum == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        queueRunning = false;
+                    }
+                }
+                if (!queueRunning)
+                    break;
+
+                // Take the batch (priority lane first) while the destination is the same
+                batchDestination = slotsDestination[priorityNum > 0 ? priorityLane[priorityHead]
+                        : normalLane[normalHead]];
+                for (int i = 0; i < BATCH_FRAMES && priorityNum + normalNum > 0; i++) {
+                    int slot;
+                    if (priorityNum > 0) {
+                        slot = priorityLane[priorityHead];
+                        if (slotsDestination[slot] != batchDestination)
+                            break;
+                        priorityHead = (priorityHead + 1) % SLOTS_NUM;
+                        priorityNum--;
+                    } else {
+                        slot = normalLane[normalHead];
+                        if (slotsDestination[slot] != batchDestination)
+                            break;
+                        normalHead = (normalHead + 1) % SLOTS_NUM;
+                        normalNum--;
+                    }
+                    System.arraycopy(slots[slot], 0, batchBuffer, batchLength, slotsLength[slot]);
+                    batchLength += slotsLength[slot];
+                    freeSlots[freeSlotsNum++] = slot;
+                    framesWritten++;
+                }
+                batchesWritten++;
+            }
+
+            // Write outside the lock, so senders are never blocked by the transport
+            try {
+                frameWriter.write(batchBuffer, batchLength, batchDestination);
+            } catch (Exception e) {
+                logger.error("Error writing to " + name + "!", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of frames waiting in the queue
+     */
+    public synchronized int getFramesQueued() {
+        return priorityNum + normalNum;
+    }
+
+    /**
+     * @return number of frames handed to the transport
+     */
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * @return number of frames dropped because the queue was full
+     */
+    public synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * @return number of writes to the transport
+     */
+    public synchronized long getBatchesWritten() {
+        return batchesWritten;
+    }
+
+    /**
+     * Stops the writer loop. Queued frames are discarded
+     */
+    public synchronized void stop() {
+        queueRunning = false;
+        notifyAll();
+    }
+}
@@ -31,49 +31,87 @@ package com.liberty_amls;
 
 import org.apache.log4j.Logger;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * This class sends and receives packets via a non-blocking DatagramChannel.
+ * Receiving is driven by the UDPSelector thread and goes directly to the receive listener (packet decoder).
+ * In multiplexed mode the second handler has no socket of its own. It sends via the socket and the transmit queue
+ * of the first handler, and receives datagrams that come from its address
+ */
+public class UDPHandler {
+    /**
+     * Receives all incoming datagrams
+     */
+    public interface ReceiveListener {
+        /**
+         * @param data received datagram between position and limit (valid only during the call)
+         */
+        void onReceive(ByteBuffer data);
+    }
 
-public class UDPHandler implements Runnable {
     private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
-    private DatagramSocket datagramSocket;
+    private DatagramChannel datagramChannel;
     private final String udpIPPortRx, udpTxPort;
-    private final int udpTimeout;
-    private InetAddress inetAddress;
-    private int portTx;
-    private boolean udpPortOpened = false;
-    private byte[] udpData;
-    private final byte[] packetBuffer = new byte[1024];
-    private final LinkedBlockingQueue<Byte> receiveBuffer = new LinkedBlockingQueue<>(1024);
-    private volatile boolean handlerRunning = false;
+    private InetSocketAddress txAddress;
+    private volatile boolean udpPortOpened = false;
+    private final TransmitQueue transmitQueue;
+    private final ByteBuffer txBuffer = ByteBuffer.allocateDirect(1024);
+    private final ByteBuffer rxBuffer = ByteBuffer.allocateDirect(2048);
+    private ReceiveListener receiveListener;
+
+    // Multiplexed mode (one socket for the link and the platform)
+    private static final int DESTINATION_MULTIPLEXED = 1;
+    private UDPHandler multiplexedHandler, parentHandler;
 
     /**
-     * This class takes an array of bytes (udpData) and sends it as a packet via an UDP
+     * This class sends frames from its transmit queue as packets via an UDP
      * @param udpIPPortRx String with format 'IP:PORT'. IP + Port on which Liberty-Way will receive data
      * @param udpTxPort String with format 'PORT'. Port on which Liberty-Way will send data
      */
-    public UDPHandler(String udpIPPortRx, String udpTxPort, int udpTimeout) {
+    public UDPHandler(String udpIPPortRx, String udpTxPort) {
         this.udpIPPortRx = udpIPPortRx;
         this.udpTxPort = udpTxPort;
-        this.udpTimeout = udpTimeout;
+        this.transmitQueue = new TransmitQueue("UDP port " + udpTxPort, this::writeFrames);
+    }
+
+    /**
+     * Enables multiplexed mode. Must be called before opening both handlers
+     * @param multiplexedHandler UDPHandler class object that will share the socket of this handler
+     *                           (its receive port is ignored)
+     */
+    public void multiplex(UDPHandler multiplexedHandler) {
+        this.multiplexedHandler = multiplexedHandler;
+        multiplexedHandler.parentHandler = this;
     }
 
     /**
-     * Parses udpIPPort into inetAddress and port and creates the datagramSocket object
+     * Parses udpIPPort into the address and ports and opens non-blocking datagramChannel
+     * (or attaches to the socket of the parent handler in multiplexed mode)
      */
     public void openUDP() {
         try {
             if (udpIPPortRx != null && udpIPPortRx.length() > 0 && udpTxPort != null && udpTxPort.length() > 0) {
-                inetAddress = InetAddress.getByName(udpIPPortRx.split(":")[0]);
+                InetAddress inetAddress = InetAddress.getByName(udpIPPortRx.split(":")[0]);
                 int portRx = Integer.parseInt(udpIPPortRx.split(":")[1]);
-                portTx = Integer.parseInt(udpTxPort);
-                datagramSocket = new DatagramSocket(portRx);
-                udpData = new byte[1];
+                txAddress = new InetSocketAddress(inetAddress, Integer.parseInt(udpTxPort));
+                if (parentHandler != null) {
+                    udpPortOpened = parentHandler.isUdpPortOpened();
+                    if (udpPortOpened)
+                        send(new byte[1], false);
+                    return;
+                }
+                datagramChannel = DatagramChannel.open();
+                datagramChannel.bind(new InetSocketAddress(portRx));
+                datagramChannel.configureBlocking(false);
                 udpPortOpened = true;
-                pushData();
+                send(new byte[1], false);
             }
         } catch (Exception e) {
             udpPortOpened = false;
@@ -83,74 +121,109 @@ public class UDPHandler implements Runnable {
         }
     }
 
-    @Override
-    public void run() {
-        if (udpPortOpened)
-            handlerRunning = true;
-        while (handlerRunning)
-            updReader();
+    /**
+     * Registers opened channel for reading in the selector
+     * @param selector selector of the UDPSelector thread
+     */
+    public void register(Selector selector) throws Exception {
+        if (udpPortOpened && parentHandler == null)
+            datagramChannel.register(selector, SelectionKey.OP_READ, this);
     }
 
     /**
-     * Pushes data as a datagramPacket via an UDP
+     * Queues the frame for sending. The frame is copied, so the buffer can be reused right after the call
+     * @param frame bytes of the frame
+     * @param priority true to send the frame before all normal frames (FTS, land, etc.)
      */
-    public void pushData() {
-        try {
-            if (udpPortOpened && udpData != null && udpData.length > 0) {
-                DatagramPacket packet = new DatagramPacket(
-                        udpData, udpData.length, inetAddress, portTx
-                );
-                datagramSocket.send(packet);
-            }
-        } catch (Exception e) {
-            logger.error("Error pushing data to " + udpTxPort, e);
+    public void send(byte[] frame, boolean priority) {
+        if (udpPortOpened) {
+            if (parentHandler != null)
+                parentHandler.transmitQueue.offer(frame, frame.length, priority, DESTINATION_MULTIPLEXED);
+            else
+                transmitQueue.offer(frame, frame.length, priority);
         }
     }
 
     /**
-     * Blocks until at least 1 byte of data is received into the buffer
-     * @return byte from UDP port
+     * @return transmit queue of the port (its writer loop must be started in a separate thread
+     * unless the handler is multiplexed)
      */
-    public byte takeSingleByte() {
+    public TransmitQueue getTransmitQueue() {
+        return transmitQueue;
+    }
+
+    /**
+     * @return true if the handler uses the socket of another handler
+     */
+    public boolean isMultiplexed() {
+        return parentHandler != null;
+    }
+
+    /**
+     * Sends frames as one datagram. Called from the transmit queue thread
+     * @param data frames to send
+     * @param length number of bytes
+     * @param destination DESTINATION_MULTIPLEXED to send to the address of the multiplexed handler
+     */
+    private void writeFrames(byte[] data, int length, int destination) {
         try {
-            return receiveBuffer.take();
+            if (udpPortOpened) {
+                txBuffer.clear();
+                txBuffer.put(data, 0, Math.min(length, txBuffer.capacity()));
+                txBuffer.flip();
+                datagramChannel.send(txBuffer, destination == DESTINATION_MULTIPLEXED && multiplexedHandler != null
+                        ? multiplexedHandler.txAddress : txAddress);
+            }
         } catch (Exception e) {
-            logger.error("Error taking byte from buffer!", e);
+            logger.error("Error pushing data to " + udpTxPort, e);
         }
-        return 0;
     }
 
     /**
-     * Reads all available bytes from UDP port
+     * Reads all pending datagrams and hands them to the receive listener. Called from the UDPSelector thread
      */
-    private void updReader() {
+    public void receive() {
         try {
-            if (udpPortOpened) {
-                // New receiving packet
-                DatagramPacket packet = new DatagramPacket(packetBuffer, packetBuffer.length);
-
-                // Block until a packet is received
-                datagramSocket.setSoTimeout(udpTimeout);
-                datagramSocket.receive(packet);
+            while (udpPortOpened) {
+                rxBuffer.clear();
+                SocketAddress sourceAddress = datagramChannel.receive(rxBuffer);
+                if (sourceAddress == null)
+                    break;
+                rxBuffer.flip();
 
-                // Add bytes to the buffer
-                for (int i = 0; i < packet.getLength(); i++) {
-                    receiveBuffer.add(packetBuffer[i + packet.getOffset()]);
-                }
+                // Demultiplex by the source address
+                ReceiveListener listener = receiveListener;
+                if (multiplexedHandler != null && multiplexedHandler.isSource((InetSocketAddress) sourceAddress))
+                    listener = multiplexedHandler.receiveListener;
+                if (listener != null)
+                    listener.onReceive(rxBuffer);
             }
-        } catch (SocketTimeoutException e) {
-            //logger.warn("Timeout reading data from " + udpIPPortRx);
         } catch (Exception e) {
-            logger.error("Error reading data from " + udpIPPortRx, e);
+            if (udpPortOpened)
+                logger.error("Error reading data from " + udpIPPortRx, e);
         }
     }
 
     /**
-     * Sets bytes buffer to be sent to the UDP socket
-     * @param udpData bytes buffer
+     * Checks if the datagram came from this (multiplexed) handler's device. If the link and the platform
+     * have different IPs, the IP is compared, otherwise the source port must be equal to the transmit port
+     * @param sourceAddress source address of the datagram
+     * @return true if the datagram belongs to this handler
      */
-    public void setUdpData(byte[] udpData) {
-        this.udpData = udpData;
+    private boolean isSource(InetSocketAddress sourceAddress) {
+        if (txAddress == null)
+            return false;
+        if (!txAddress.getAddress().equals(parentHandler.txAddress.getAddress()))
+            return txAddress.getAddress().equals(sourceAddress.getAddress());
+        return txAddress.getPort() == sourceAddress.getPort();
+    }
+
+    /**
+     * Sets the receiver of the incoming datagrams
+     * @param receiveListener ReceiveListener (usually packet decoder of the handler)
+     */
+    public void setReceiveListener(ReceiveListener receiveListener) {
+        this.receiveListener = receiveListener;
     }
 
     /**
@@ -161,13 +234,17 @@ public class UDPHandler implements Runnable {
     }
 
     /**
-     * Closes datagramSocket and sets udpPortOpened flag to false
+     * Closes datagramChannel and sets udpPortOpened flag to false
      */
     public void closeUDP() {
         logger.warn("Closing UDP port " + udpIPPortRx + ", " + udpTxPort);
-        handlerRunning = false;
-        if (udpPortOpened)
-            datagramSocket.close();
-        udpPortOpened = false;
+        transmitQueue.stop();
+        if (udpPortOpened) {
+            udpPortOpened = false;
+            try {
+                if (parentHandler == null)
+                    datagramChannel.close();
+            } catch (Exception ignored) { }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+/**
+ * Single thread that waits for datagrams on all opened UDP channels (link and platform)
+ * and hands them to their UDPHandler
+ */
+public class UDPSelector implements Runnable {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private Selector selector;
+    private volatile boolean selectorRunning = false;
+
+    /**
+     * Opens the selector and registers all opened UDP handlers
+     * @param udpHandlers UDPHandler class objects (closed handlers are skipped)
+     * @return true if at least one channel is registered
+     */
+    public boolean open(UDPHandler... udpHandlers) {
+        try {
+            selector = Selector.open();
+            for (UDPHandler udpHandler : udpHandlers)
+                udpHandler.register(selector);
+            selectorRunning = !selector.keys().isEmpty();
+            if (!selectorRunning)
+                selector.close();
+        } catch (Exception e) {
+            logger.error("Error opening UDP selector!", e);
+            selectorRunning = false;
+        }
+        return selectorRunning;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Starting UDP selector loop");
+        while (selectorRunning) {
+            try {
+                // Block until any channel is readable or the selector is woken up by stop()
+                selector.select();
+                Iterator<SelectionKey> keysIterator = selector.selectedKeys().iterator();
+                while (keysIterator.hasNext()) {
+                    SelectionKey selectionKey = keysIterator.next();
+                    keysIterator.remove();
+                    if (selectionKey.isValid() && selectionKey.isReadable())
+                        ((UDPHandler) selectionKey.attachment()).receive();
+                }
+            } catch (ClosedSelectorException ignored) {
+                break;
+            } catch (Exception e) {
+                logger.error("Error selecting UDP channels!", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the selector loop immediately
+     */
+    public void stop() {
+        logger.warn("Stopping UDP selector");
+        selectorRunning = false;
+        try {
+            if (selector != null)
+                selector.close();
+        } catch (Exception ignored) { }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 Fern Lane, Liberty-Way UAS controller
+ * This software is part of Liberty Drones Project aka AMLS (Autonomous Multirotor Landing System)
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.liberty_amls;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Recorded video file frame source (any file that OpenCV VideoCapture can open)
+ */
+public class VideoFileFrameSource implements FrameSource {
+    private final Logger logger = Logger.getLogger(this.getClass().getSimpleName());
+    private final SettingsContainer settingsContainer;
+    private final VideoCapture videoCapture = new VideoCapture();
+    private final String fileName;
+
+    /**
+     * @param fileName path to the video file
+     * @param settingsContainer SettingsContainer class object
+     */
+    public VideoFileFrameSource(String fileName, SettingsContainer settingsContainer) {
+        this.fileName = fileName;
+        this.settingsContainer = settingsContainer;
+    }
+
+    @Override
+    public boolean open() {
+        logger.info("Opening video file: " + fileName);
+        videoCapture.open(fileName);
+        return videoCapture.isOpened();
+    }
+
+    @Override
+    public boolean read(Mat frame) {
+        return videoCapture.read(frame) && !frame.empty();
+    }
+
+    @Override
+    public boolean isOpened() {
+        return videoCapture.isOpened();
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public double getFrameRate() {
+        // Use FPS from the file if it is known
+        double fps = videoCapture.get(Videoio.CAP_PROP_FPS);
+        return fps > 0 ? fps : settingsContainer.replayFPS;
+    }
+
+    @Override
+    public void setExposure(double exposure) { }
+
+    @Override
+    public void release() {
+        videoCapture.release();
+    }
+
+    @Override
+    public String toString() {
+        return "video file " + fileName;
+    }
+}
@@ -35,7 +35,6 @@ import com.google.gson.JsonPrimitive;
 import flak.Response;
 import org.apache.log4j.Logger;
 import org.opencv.core.Core;
-import org.opencv.videoio.VideoCapture;
 
 import javax.swing.*;
 import java.io.ByteArrayOutputStream;
@@ -43,6 +42,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.TimerTask;
 
 public class WebAPI {
@@ -55,11 +55,18 @@ public class WebAPI {
     private boolean aborted = false, controllerRunning = false;
 
     private BlackboxHandler blackboxHandler;
-    private OpenCVHandler openCVHandler;
+    private final ArrayList<OpenCVHandler> openCVHandlers = new ArrayList<>();
+    private final ArrayList<FrameGrabber> frameGrabbers = new ArrayList<>();
+    private PoseFuser poseFuser;
+    private LatencyMonitor latencyMonitor;
     private OSDHandler osdHandler;
     private UDPHandler udpHandlerLink, udpHandlerPlatform;
+    private UDPSelector udpSelector;
+    private LinkWatchdog linkWatchdog;
     private SerialHandler serialHandlerLink, serialHandlerPlatform;
     private LinkSender linkSender;
+    private LinkScheduler linkScheduler;
+    private ControlLoop controlLoop;
     private PositionHandler positionHandler;
     private PlatformHandler platformHandler;
     private TelemetryHandler telemetryHandler;
@@ -142,6 +149,30 @@ public class WebAPI {
                         }
                         break;
 
+                    case ("latency"):
+                        // Request per-stage latency (p50, p99 and max of the last FPS measure period)
+                        if (controllerRunning) {
+                            apiResponse.add("status", new JsonPrimitive("ok"));
+                            apiResponse.add("latency", fillLatency());
+                            response.setStatus(200);
+                        } else {
+                            // The controller is not running
+                            returnError(response, apiResponse, "The controller is not running!", 418);
+                        }
+                        break;
+
+                    case ("landing_states"):
+                        // Request time spent in each status of the landing sequence and transitions counters
+                        if (controllerRunning) {
+                            apiResponse.add("status", new JsonPrimitive("ok"));
+                            apiResponse.add("landing_states", fillLandingStates());
+                            response.setStatus(200);
+                        } else {
+                            // The controller is not running
+                            returnError(response, apiResponse, "The controller is not running!", 418);
+                        }
+                        break;
+
                     case ("toggle_stream"):
                         // Start or stop JPEG video stream with OSD
                         if (controllerRunning) {
@@ -339,21 +370,31 @@ public class WebAPI {
         serialHandlerLink = new SerialHandler(setupData.get("link_port").getAsString(),
                 setupData.get("link_port").getAsString().length() > 0 ?
                         setupData.get("link_baudrate").getAsString() : "",
-                settingsContainer.serialReconnectTime);
+                settingsContainer.serialReconnectTime, settingsContainer.serialReadTimeout);
 
         // Create SerialHandler class for serial communication with Platform
         serialHandlerPlatform = new SerialHandler(setupData.get("platform_port").getAsString(),
                 setupData.get("platform_port").getAsString().length() > 0 ?
                         setupData.get("platform_baudrate").getAsString() : "",
-                settingsContainer.serialReconnectTime);
+                settingsContainer.serialReconnectTime, settingsContainer.serialReadTimeout);
 
         // Create UDPHandler class for UDP communication with Liberty-Link
         udpHandlerLink = new UDPHandler(setupData.get("link_udp").getAsString(),
-                setupData.get("link_udp_tx").getAsString(), settingsContainer.udpTimeout);
+                setupData.get("link_udp_tx").getAsString());
 
         // Create UDPHandler class for UDP communication with Platform
         udpHandlerPlatform = new UDPHandler(setupData.get("platform_udp").getAsString(),
-                setupData.get("platform_udp_tx").getAsString(), settingsContainer.udpTimeout);
+                setupData.get("platform_udp_tx").getAsString());
+
+        // Share one socket between the link and the platform
+        if (settingsContainer.udpMultiplexed)
+            udpHandlerLink.multiplex(udpHandlerPlatform);
+
+        // Create UDPSelector class for receiving from all UDP ports in one thread
+        udpSelector = new UDPSelector();
+
+        // Create LinkWatchdog class for link lost deadlines and platform requests
+        linkWatchdog = new LinkWatchdog();
 
         // Create PositionContainer class for store current position
         positionContainer = new PositionContainer();
@@ -364,16 +405,30 @@ public class WebAPI {
         // Create TelemetryContainer class for store telemetry data
         telemetryContainer = new TelemetryContainer();
 
-        // Create VideoCapture class
-        VideoCapture videoCapture = new VideoCapture();
+        // Create LatencyMonitor class for per-stage latency histograms (frame stages and the DDC send)
+        latencyMonitor = new LatencyMonitor();
+
+        // Create FrameGrabber class for each platform camera for capturing frames in a separate thread
+        // (comma-separated list of IDs. Camera ID can also be a path to the video file or to the directory of PNG images)
+        // Lists may contain cameras of the previous failed setup
+        openCVHandlers.clear();
+        frameGrabbers.clear();
+        String[] platformCameraIDs = setupData.get("platform_camera_id").getAsString().split(",");
+        if (platformCameraIDs.length - 1 > settingsContainer.extraCameraMatrixFiles.size()) {
+            logger.error("No calibration files for the extra platform cameras!");
+            return;
+        }
+        for (String platformCameraID : platformCameraIDs)
+            frameGrabbers.add(new FrameGrabber(FrameSource.create(platformCameraID.trim(), settingsContainer),
+                    settingsContainer));
 
         // Create PlatformHandler class for integrating with platform
         platformHandler = new PlatformHandler(platformContainer, positionContainer,
-                serialHandlerPlatform, udpHandlerPlatform, settingsContainer, waypointsContainer);
+                serialHandlerPlatform, udpHandlerPlatform, linkWatchdog, settingsContainer, waypointsContainer);
 
         // Create TelemetryHandler class for read the telemetry data
         telemetryHandler = new TelemetryHandler(telemetryContainer, serialHandlerLink,
-                udpHandlerLink, settingsContainer);
+                udpHandlerLink, linkWatchdog, settingsContainer);
 
         // Create DroneCameraHandler class object
         droneCameraHandler = new DroneCameraHandler(setupData.get("drone_camera_id").getAsString());
@@ -384,32 +439,55 @@ public class WebAPI {
 
         // Create BlackboxHandler class for logging all events and position
         blackboxHandler = new BlackboxHandler(positionContainer,
-                platformContainer, telemetryContainer, settingsContainer.blackboxFolder);
+                platformContainer, telemetryContainer, latencyMonitor, telemetryHandler.getLinkStatistics(),
+                platformHandler.getLinkStatistics(), serialHandlerLink, serialHandlerPlatform,
+                settingsContainer.blackboxFolder);
 
         // Create LinkSender class for to send liberty-link packets to the drone
-        linkSender = new LinkSender(serialHandlerLink, udpHandlerLink, settingsContainer);
+        linkSender = new LinkSender(serialHandlerLink, udpHandlerLink, settingsContainer, latencyMonitor);
+
+        // Create LinkScheduler class for to send DDC and waypoints at the fixed rate
+        linkScheduler = new LinkScheduler(linkSender, settingsContainer);
 
         // Create PositionHandler class for to handle the current position
-        positionHandler = new PositionHandler(linkSender, positionContainer, platformContainer,
+        positionHandler = new PositionHandler(linkSender, linkScheduler, positionContainer, platformContainer,
                 telemetryContainer, blackboxHandler, settingsContainer, waypointsContainer);
+        linkScheduler.setPositionHandler(positionHandler);
+        linkWatchdog.setLinkListener(positionHandler);
+
+        // Create ControlLoop class for to run the position handling at the fixed rate
+        controlLoop = new ControlLoop(positionHandler, settingsContainer);
 
-        // Set coefficients for MiniPID in PositionHandler class
+        // Set coefficients for PID controllers in PositionHandler class
         positionHandler.loadPIDFromFile();
 
-        // Create OpenCVHandler class for find marker and estimate its position
-        openCVHandler = new OpenCVHandler(Integer.parseInt(setupData.get("platform_camera_id").getAsString()),
-                videoCapture,
-                positionHandler,
-                positionContainer,
-                telemetryContainer,
-                platformContainer,
-                osdHandler,
-                settingsContainer);
-
-        // Check camera
-        if (!openCVHandler.start()) {
-            logger.error("Can't open camera!");
-            return;
+        // Create PoseFuser class for to fuse marker positions from all platform cameras
+        poseFuser = new PoseFuser(positionHandler, frameGrabbers.size(), settingsContainer);
+
+        // Create OpenCVHandler class for each platform camera for find marker and estimate its position
+        for (int i = 0; i < frameGrabbers.size(); i++)
+            openCVHandlers.add(new OpenCVHandler(i,
+                    frameGrabbers.get(i),
+                    poseFuser,
+                    latencyMonitor,
+                    positionContainer,
+                    telemetryContainer,
+                    platformContainer,
+                    osdHandler,
+                    settingsContainer));
+
+        // Check cameras
+        for (OpenCVHandler openCVHandler : openCVHandlers) {
+            if (!openCVHandler.start()) {
+                logger.error("Can't open camera!");
+
+                // Release already opened cameras, so the setup can be retried
+                for (OpenCVHandler openedHandler : openCVHandlers)
+                    openedHandler.stop();
+                openCVHandlers.clear();
+                frameGrabbers.clear();
+                return;
+            }
         }
 
         // Log main thread ID
@@ -421,51 +499,81 @@ public class WebAPI {
         udpHandlerLink.openUDP();
         udpHandlerPlatform.openUDP();
 
-        // Create and start a new thread with the normal priority for the UDP handler (async reader)
-        if (udpHandlerLink.isUdpPortOpened()) {
-            Thread udpLinkThread = new Thread(udpHandlerLink);
-            udpLinkThread.setPriority(Thread.NORM_PRIORITY);
-            udpLinkThread.start();
-        }
-
-        // Create and start new thread with the normal priority for the UDP handler (async reader)
-        if (udpHandlerPlatform.isUdpPortOpened()) {
-            Thread udpPlatformThread = new Thread(udpHandlerPlatform);
-            udpPlatformThread.setPriority(Thread.NORM_PRIORITY);
-            udpPlatformThread.start();
+        // Create and start a single thread with the normal priority for all UDP ports (async reader)
+        if (udpSelector.open(udpHandlerLink, udpHandlerPlatform)) {
+            Thread udpSelectorThread = new Thread(udpSelector);
+            udpSelectorThread.setPriority(Thread.NORM_PRIORITY);
+            udpSelectorThread.start();
         }
 
-        // Create and start new thread for the platformHandler if platform port is open
+        // Create and start one writer thread for each opened port (transmit queues)
+        if (serialHandlerLink.isPortOpened())
+            new Thread(serialHandlerLink.getTransmitQueue(), "Link serial writer").start();
+        if (serialHandlerPlatform.isPortOpened())
+            new Thread(serialHandlerPlatform.getTransmitQueue(), "Platform serial writer").start();
+        if (udpHandlerLink.isUdpPortOpened())
+            new Thread(udpHandlerLink.getTransmitQueue(), "Link UDP writer").start();
+        if (udpHandlerPlatform.isUdpPortOpened() && !udpHandlerPlatform.isMultiplexed())
+            new Thread(udpHandlerPlatform.getTransmitQueue(), "Platform UDP writer").start();
+
+        // Start platform requests and new reading thread for the platformHandler if platform serial port is open
+        // (UDP datagrams are decoded by the UDPSelector thread)
         if (serialHandlerPlatform.isPortOpened() || udpHandlerPlatform.isUdpPortOpened()) {
-            Thread platformThread = new Thread(platformHandler);
-            platformThread.start();
-            logger.info("Platform thread ID: " + platformThread.getId());
+            platformHandler.startRequests();
+            if (!udpHandlerPlatform.isUdpPortOpened()) {
+                new Thread(serialHandlerPlatform, "Platform serial reader").start();
+                Thread platformThread = new Thread(platformHandler);
+                platformThread.start();
+                logger.info("Platform thread ID: " + platformThread.getId());
+            }
         } else
             logger.warn("No communication with the platform!");
 
-        // Create and start new thread for the platformHandler if Liberty-Link port is open
-        if (serialHandlerLink.isPortOpened() || udpHandlerLink.isUdpPortOpened()) {
+        // Create and start new reading thread for the telemetryHandler if Liberty-Link serial port is open
+        if (serialHandlerLink.isPortOpened() && !udpHandlerLink.isUdpPortOpened()) {
+            new Thread(serialHandlerLink, "Link serial reader").start();
             Thread telemetryThread = new Thread(telemetryHandler);
             telemetryThread.setPriority(Thread.NORM_PRIORITY);
             telemetryThread.start();
             logger.info("Telemetry thread ID: " + telemetryThread.getId());
-        } else
+        } else if (!udpHandlerLink.isUdpPortOpened())
             logger.warn("No Liberty-Link port! Telemetry data cannot be read!");
 
+        // Create and start a new thread with the highest priority for the link scheduler
+        Thread linkSchedulerThread = new Thread(linkScheduler);
+        linkSchedulerThread.setPriority(Thread.MAX_PRIORITY);
+        linkSchedulerThread.start();
+        logger.info("Link scheduler thread ID: " + linkSchedulerThread.getId());
+
+        // Create and start a new thread with the highest priority for the control loop
+        Thread controlLoopThread = new Thread(controlLoop);
+        controlLoopThread.setPriority(Thread.MAX_PRIORITY);
+        controlLoopThread.start();
+        logger.info("Control loop thread ID: " + controlLoopThread.getId());
+
         // Create and start a new thread with the normal priority for the blackbox
         Thread blackboxThread = new Thread(blackboxHandler);
         blackboxThread.setPriority(Thread.NORM_PRIORITY);
         blackboxThread.start();
         logger.info("Blackbox thread ID: " + blackboxThread.getId());
 
-        // Create and start a new thread with the highest priority for opencv handler
-        Thread openCVThread = new Thread(openCVHandler);
-        openCVThread.setPriority(Thread.MAX_PRIORITY);
-        openCVThread.start();
-        logger.info("OpenCV thread ID: " + openCVThread.getId());
+        // Create and start new threads with the highest priority for each camera
+        for (int i = 0; i < openCVHandlers.size(); i++) {
+            // Frame grabber (capture stage)
+            Thread frameGrabberThread = new Thread(frameGrabbers.get(i));
+            frameGrabberThread.setPriority(Thread.MAX_PRIORITY);
+            frameGrabberThread.start();
+            logger.info("Frame grabber " + i + " thread ID: " + frameGrabberThread.getId());
+
+            // OpenCV handler (detection stage)
+            Thread openCVThread = new Thread(openCVHandlers.get(i));
+            openCVThread.setPriority(Thread.MAX_PRIORITY);
+            openCVThread.start();
+            logger.info("OpenCV " + i + " thread ID: " + openCVThread.getId());
+        }
 
-        // Wait for the first frame from OpenCVHandler
-        while (openCVHandler.isFrameEmpty()) ;
+        // Wait for the first frame from the primary OpenCVHandler
+        while (openCVHandlers.get(0).isFrameEmpty()) ;
 
         // Create and start a new thread with the lowest priority for the drone camera
         Thread droneCameraThread = new Thread(droneCameraHandler);
@@ -517,11 +625,16 @@ public class WebAPI {
 
             // Disable liberty-way sequence
             positionHandler.setLibertyWayEnabled(false);
+            controlLoop.stop();
+            linkScheduler.stop();
+            linkWatchdog.stop();
 
-            // Close OpenCV handler
-            openCVHandler.stop();
+            // Close OpenCV handlers
+            for (OpenCVHandler openCVHandler : openCVHandlers)
+                openCVHandler.stop();
 
             // Close UDP and Serial ports
+            udpSelector.stop();
             udpHandlerLink.closeUDP();
             udpHandlerPlatform.closeUDP();
             serialHandlerLink.closePort();
@@ -540,6 +653,77 @@ public class WebAPI {
         }, 2000, 500);
     }
 
+    /**
+     * Adds per-stage latency of the last FPS measure period to JSON (in milliseconds)
+     * @return JsonObject with latency data
+     */
+    private JsonObject fillLatency() {
+        JsonObject latency = new JsonObject();
+        for (int stage = 0; stage < LatencyMonitor.STAGE_NAMES.length; stage++) {
+            JsonObject stageLatency = new JsonObject();
+            stageLatency.add("p50", new JsonPrimitive(latencyMonitor.getP50(stage)));
+            stageLatency.add("p99", new JsonPrimitive(latencyMonitor.getP99(stage)));
+            stageLatency.add("max", new JsonPrimitive(latencyMonitor.getMax(stage)));
+            stageLatency.add("count", new JsonPrimitive(latencyMonitor.getCount(stage)));
+            latency.add(LatencyMonitor.STAGE_NAMES[stage], stageLatency);
+        }
+        return latency;
+    }
+
+    /**
+     * Adds landing sequence statistics to JSON
+     * @return JsonObject with current status, time (s) and entries of each status
+     * and counters of the taken transitions ("FROM-TO")
+     */
+    private JsonObject fillLandingStates() {
+        LandingStateMachine landingStateMachine = positionHandler.getLandingStateMachine();
+        JsonObject landingStates = new JsonObject();
+        landingStates.add("current", new JsonPrimitive(
+                PositionContainer.getStatusString(landingStateMachine.getState())));
+
+        JsonObject states = new JsonObject();
+        JsonObject transitions = new JsonObject();
+        for (int from = 0; from < landingStateMachine.getStatesNum(); from++) {
+            String fromName = PositionContainer.getStatusString(from);
+            JsonObject state = new JsonObject();
+            state.add("time", new JsonPrimitive(landingStateMachine.getStateTime(from)));
+            state.add("entries", new JsonPrimitive(landingStateMachine.getStateEntries(from)));
+            states.add(fromName, state);
+
+            // Only taken transitions
+            for (int to = 0; to < landingStateMachine.getStatesNum(); to++) {
+                long count = landingStateMachine.getTransitionsCount(from, to);
+                if (count > 0)
+                    transitions.add(fromName + "-" + PositionContainer.getStatusString(to), new JsonPrimitive(count));
+            }
+        }
+        landingStates.add("states", states);
+        landingStates.add("transitions", transitions);
+        return landingStates;
+    }
+
+    /**
+     * Adds link quality statistics of the last second to JSON
+     * @param linkStatistics LinkStatistics of the drone telemetry or platform
+     * @param serialHandler SerialHandler of the drone telemetry or platform
+     * @return JsonObject with packets rate, inter-arrival time (ms), jitter (ms), checksum failure rate, resyncs
+     * and serial receive overflows
+     */
+    private JsonObject fillLinkStatistics(LinkStatistics linkStatistics, SerialHandler serialHandler) {
+        JsonObject link = new JsonObject();
+        LinkStatistics.Report report = linkStatistics.snapshot();
+        link.add("packets_per_second", new JsonPrimitive(report.packetsRate));
+        link.add("interval_p50", new JsonPrimitive(report.intervalP50));
+        link.add("interval_p99", new JsonPrimitive(report.intervalP99));
+        link.add("interval_max", new JsonPrimitive(report.intervalMax));
+        link.add("jitter", new JsonPrimitive(report.jitter));
+        link.add("checksum_failure_rate", new JsonPrimitive(report.checksumFailureRate));
+        link.add("resyncs", new JsonPrimitive(report.resyncs));
+        link.add("serial_overflows", new JsonPrimitive(serialHandler.getOverflows()));
+        link.add("serial_dropped_bytes", new JsonPrimitive(serialHandler.getDroppedBytes()));
+        return link;
+    }
+
     /**
      * Adds all telemetry data to JSON
      * @return JsonObject with telemetry data
@@ -555,11 +739,25 @@ public class WebAPI {
         telemetry.add("distance",
                 new JsonPrimitive(positionContainer.distance));
 
+        // Native buffers of the detection loops
+        long nativeBytesHeld = 0;
+        double nativeAllocationsPerFrame = 0;
+        for (OpenCVHandler openCVHandler : openCVHandlers) {
+            nativeBytesHeld += openCVHandler.getNativeBytesHeld();
+            nativeAllocationsPerFrame += openCVHandler.getNativeAllocationsPerFrame();
+        }
+        telemetry.add("native_bytes_held",
+                new JsonPrimitive(nativeBytesHeld));
+        telemetry.add("native_allocations_per_frame",
+                new JsonPrimitive(nativeAllocationsPerFrame));
+
         // Drone telemetry data
         telemetry.add("drone_telemetry_lost",
                 new JsonPrimitive(telemetryContainer.telemetryLost));
         telemetry.add("drone_packets",
                 new JsonPrimitive(decimalFormat.format(telemetryContainer.packetsNumber)));
+        telemetry.add("drone_link",
+                fillLinkStatistics(telemetryHandler.getLinkStatistics(), serialHandlerLink));
         telemetry.add("flight_mode",
                 new JsonPrimitive(decimalFormatInt.format(telemetryContainer.flightMode)));
         telemetry.add("drone_voltage",
@@ -590,6 +788,8 @@ public class WebAPI {
                 new JsonPrimitive(platformContainer.platformLost));
         telemetry.add("platform_packets",
                 new JsonPrimitive(decimalFormat.format(platformContainer.packetsNumber)));
+        telemetry.add("platform_link",
+                fillLinkStatistics(platformHandler.getLinkStatistics(), serialHandlerPlatform));
         telemetry.add("platform_satellites",
                 new JsonPrimitive(String.valueOf(platformContainer.gps.getSatellitesNum())));
         telemetry.add("platform_lat",